@@ -28,6 +28,8 @@ import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Launcher.LocalLauncher;
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
 import hudson.model.TaskListener;
 import hudson.plugins.git.util.GitConstants;
 import hudson.remoting.VirtualChannel;
@@ -42,39 +44,95 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.api.FetchCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ListBranchCommand;
+import org.eclipse.jgit.api.PushCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.NoFilepatternException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.Merger;
+import org.eclipse.jgit.merge.ResolveMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.TagOpt;
 import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.FS;
 
 public class GitAPI implements IGitAPI {
     private static final Logger LOGGER = Logger.getLogger(GitAPI.class.getName());
+
+    /**
+     * File in the git directory listing the untracked paths found by the last {@link #fastClean()}.
+     */
+    private static final String UNTRACKED_PATHS_FILE = "hudson-untracked";
+
+    /**
+     * Maximum length of the paths passed to a single git command, well below the limit of the command line on any platform.
+     */
+    static final int MAX_ARGUMENTS_LENGTH = 16 * 1024;
+
+    /**
+     * File in the git directory holding the <tt>.gitmodules</tt> blob and remote URL of the last submodule setup.
+     */
+    private static final String SUBMODULES_FINGERPRINT_FILE = "hudson-submodules";
+
+    /**
+     * Fetch and push in process with JGit, reporting progress to the listener, instead of forking git.
+     */
+    public static boolean JGIT_TRANSPORT = Boolean.getBoolean(GitAPI.class.getName() + ".jgitTransport");
+
+    /**
+     * Seconds after which an in-process fetch or push is cancelled, 0 for none.
+     */
+    public static int TRANSPORT_TIMEOUT = Integer.getInteger(GitAPI.class.getName() + ".transportTimeout", 0);
+
     private Launcher launcher;
     private FilePath workspace;
     private TaskListener listener;
     private String gitExe;
     private EnvVars environment;
     private Git jGitDelegate;
+    private final TagIndex tagIndex = new TagIndex();
     private PersonIdent author;
     private PersonIdent committer;
 
@@ -177,14 +235,22 @@ public class GitAPI implements IGitAPI {
             "Fetching upstream changes"
                 + (repository != null ? " from " + repository : ""));
 
+        if (JGIT_TRANSPORT) {
+            fetchInProcess(repository, refspec, new TransferProgressMonitor(listener, TRANSPORT_TIMEOUT));
+            return;
+        }
+
         ArgumentListBuilder args = new ArgumentListBuilder();
         args.add("fetch", "-t");
 
         if (repository != null) {
             args.add(repository);
-            if (refspec != null) {
-                args.add(refspec);
-            }
+        } else if (refspec != null) {
+            // A refspec only follows a repository
+            args.add(Constants.DEFAULT_REMOTE_NAME);
+        }
+        if (refspec != null) {
+            args.add(refspec);
         }
 
         launchCommand(args);
@@ -194,6 +260,147 @@ public class GitAPI implements IGitAPI {
         fetch(null, null);
     }
 
+    /**
+     * Fetches with JGit, like <tt>git fetch -t</tt>.
+     *
+     * @param repository repository URL or remote name, null for the default remote.
+     * @param refspec refspec to fetch, null for the configured ones.
+     * @param monitor monitor the progress is reported to, which also cancels the fetch.
+     * @throws GitException if the fetch fails, is cancelled or times out.
+     */
+    void fetchInProcess(String repository, String refspec, TransferProgressMonitor monitor) throws GitException {
+        verifyGitRepository();
+        long start = System.nanoTime();
+        try {
+            Repository repo = getRepository();
+            long packBytes = getPackBytes(repo);
+            final FetchCommand fetch = jGitDelegate.fetch().setTagOpt(TagOpt.FETCH_TAGS).setProgressMonitor(monitor);
+            if (repository != null) {
+                fetch.setRemote(repository);
+            }
+            if (refspec != null) {
+                fetch.setRefSpecs(new RefSpec(refspec));
+            }
+            if (TRANSPORT_TIMEOUT > 0) {
+                fetch.setTimeout(TRANSPORT_TIMEOUT);
+            }
+            monitor.run(new Callable<FetchResult>() {
+                public FetchResult call() throws Exception {
+                    return fetch.call();
+                }
+            });
+            // JGit keeps every pack it receives, their growth is what came over the wire
+            monitor.setBytes(Math.max(0, getPackBytes(repo) - packBytes));
+        } catch (Exception e) {
+            throw transferFailed("fetch from " + (repository != null ? repository : Constants.DEFAULT_REMOTE_NAME),
+                monitor, e);
+        }
+        listener.getLogger().println("Fetched " + monitor.getObjects() + " objects, " + monitor.getBytes()
+            + " bytes in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Pushes with JGit, one connection for all the refspecs.
+     *
+     * @param repository repository to push to.
+     * @param refspecs refspecs to push, the destination defaults to a branch or a tag like the source.
+     * @param monitor monitor the progress is reported to, which also cancels the push.
+     * @return the remote refs which were rejected, empty if all were pushed.
+     * @throws GitException if the push fails as a whole, is cancelled or times out.
+     */
+    List<String> pushInProcess(RemoteConfig repository, List<String> refspecs, TransferProgressMonitor monitor)
+        throws GitException {
+        verifyGitRepository();
+        long start = System.nanoTime();
+        List<String> rejected = new ArrayList<String>();
+        try {
+            Repository repo = getRepository();
+            List<RefSpec> specs = new ArrayList<RefSpec>();
+            for (String refspec : refspecs) {
+                specs.add(expandPushRefSpec(repo, refspec));
+            }
+            final PushCommand push = jGitDelegate.push()
+                .setRemote(repository.getURIs().get(0).toPrivateString())
+                .setRefSpecs(specs)
+                .setProgressMonitor(monitor);
+            if (TRANSPORT_TIMEOUT > 0) {
+                push.setTimeout(TRANSPORT_TIMEOUT);
+            }
+            Iterable<PushResult> results = monitor.run(new Callable<Iterable<PushResult>>() {
+                public Iterable<PushResult> call() throws Exception {
+                    return push.call();
+                }
+            });
+            for (PushResult result : results) {
+                for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+                    listener.getLogger().println("  " + update.getRemoteName() + ": " + update.getStatus()
+                        + (update.getMessage() != null ? " (" + update.getMessage() + ")" : ""));
+                    if (update.getStatus() != RemoteRefUpdate.Status.OK
+                        && update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE) {
+                        rejected.add(update.getRemoteName());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw transferFailed("push to " + repository.getName(), monitor, e);
+        }
+        listener.getLogger().println("Pushed " + monitor.getObjects() + " objects in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return rejected;
+    }
+
+    /**
+     * Completes a push refspec the way git does: a missing destination is the source, a short destination is a
+     * branch unless the source is a tag.
+     */
+    private static RefSpec expandPushRefSpec(Repository repo, String refspec) throws IOException {
+        int colon = refspec.indexOf(':');
+        String source = colon < 0 ? refspec : refspec.substring(0, colon);
+        String destination = colon < 0 ? refspec : refspec.substring(colon + 1);
+        boolean force = source.startsWith("+");
+        if (force) {
+            source = source.substring(1);
+        }
+        Ref ref = repo.getRef(source);
+        if (ref != null && !Constants.HEAD.equals(source)) {
+            source = ref.getName();
+            if (colon < 0) {
+                destination = source;
+            }
+        }
+        if (!destination.startsWith(Constants.R_REFS)) {
+            boolean tag = ref != null && ref.getName().startsWith(Constants.R_TAGS);
+            destination = (tag ? Constants.R_TAGS : Constants.R_HEADS) + destination;
+        }
+        return new RefSpec((force ? "+" : "") + source + ":" + destination);
+    }
+
+    private static GitException transferFailed(String operation, TransferProgressMonitor monitor, Exception e) {
+        if (e instanceof GitException) {
+            return (GitException) e;
+        }
+        if (monitor.isTimedOut()) {
+            return new GitException("Timed out after " + TRANSPORT_TIMEOUT + " seconds trying to " + operation, e);
+        }
+        if (monitor.isCancelled()) {
+            return new GitException("Cancelled " + operation, e);
+        }
+        return new GitException("Failed to " + operation, e);
+    }
+
+    private static long getPackBytes(Repository repo) {
+        long bytes = 0;
+        File[] packs = new File(repo.getObjectsDirectory(), "pack").listFiles();
+        if (packs != null) {
+            for (File pack : packs) {
+                if (pack.getName().endsWith(".pack")) {
+                    bytes += pack.length();
+                }
+            }
+        }
+        return bytes;
+    }
+
     /**
      * Start from scratch and clone the whole repository. Cloning into an
      * existing directory is not allowed, so the workspace is first deleted
@@ -337,6 +544,127 @@ public class GitAPI implements IGitAPI {
         }
     }
 
+    public boolean canMergeInMemory(ObjectId target, ObjectId commit) throws GitException {
+        verifyGitRepository();
+        try {
+            Repository repo = getRepository();
+            RevWalk walk = new RevWalk(repo);
+            try {
+                RevCommit targetCommit = walk.parseCommit(target);
+                RevCommit mergedCommit = walk.parseCommit(commit);
+                if (walk.isMergedInto(mergedCommit, targetCommit)) {
+                    return true;
+                }
+                walk.reset();
+                if (walk.isMergedInto(targetCommit, mergedCommit)) {
+                    return true;
+                }
+
+                // The merged trees are only formatted to compute their ids, nothing is written.
+                ResolveMerger merger = (ResolveMerger) MergeStrategy.RESOLVE.newMerger(repo, true);
+                merger.setObjectInserter(new ObjectInserter.Formatter());
+                if (merger.merge(targetCommit, mergedCommit)) {
+                    return true;
+                }
+                if (merger.getFailingPaths() != null && !merger.getFailingPaths().isEmpty()) {
+                    throw new GitException("Could not merge " + commit.name() + " into " + target.name()
+                        + " in memory: " + merger.getFailingPaths().keySet());
+                }
+                // Only a path changed on both sides surely conflicts: one deleted on a side may have been renamed,
+                // which git merge detects and this merge does not
+                for (String path : merger.getUnmergedPaths()) {
+                    if (hasPath(repo, targetCommit, path) && hasPath(repo, mergedCommit, path)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                walk.release();
+            }
+        } catch (IOException e) {
+            throw new GitException("Could not merge " + commit.name() + " into " + target.name() + " in memory", e);
+        }
+    }
+
+    private static boolean hasPath(Repository repo, RevCommit commit, String path) throws IOException {
+        TreeWalk walk = TreeWalk.forPath(repo, path, commit.getTree());
+        if (walk == null) {
+            return false;
+        }
+        walk.release();
+        return true;
+    }
+
+    public ObjectId mergeInMemory(ObjectId target, ObjectId commit) throws GitException {
+        verifyGitRepository();
+        try {
+            Repository repo = getRepository();
+            RevWalk walk = new RevWalk(repo);
+            try {
+                RevCommit targetCommit = walk.parseCommit(target);
+                RevCommit mergedCommit = walk.parseCommit(commit);
+                if (walk.isMergedInto(mergedCommit, targetCommit)) {
+                    return targetCommit;
+                }
+                walk.reset();
+                if (walk.isMergedInto(targetCommit, mergedCommit)) {
+                    return mergedCommit;
+                }
+
+                // Merge the trees in the object database only, neither the index nor the work tree are touched.
+                Merger merger = MergeStrategy.RESOLVE.newMerger(repo, true);
+                if (!merger.merge(targetCommit, mergedCommit)) {
+                    return null;
+                }
+
+                PersonIdent author;
+                PersonIdent committer;
+                synchronized (this) {
+                    parseEnvVars(getEnvironment());
+                    author = getAuthor() != null ? getAuthor() : new PersonIdent(repo);
+                    committer = getCommitter() != null ? getCommitter() : new PersonIdent(repo);
+                }
+                CommitBuilder merge = new CommitBuilder();
+                merge.setTreeId(merger.getResultTreeId());
+                merge.setParentIds(targetCommit, mergedCommit);
+                merge.setAuthor(author);
+                merge.setCommitter(committer);
+                merge.setMessage("Merge commit '" + mergedCommit.name() + "'");
+                ObjectInserter inserter = repo.newObjectInserter();
+                try {
+                    ObjectId id = inserter.insert(merge);
+                    inserter.flush();
+                    return id;
+                } finally {
+                    inserter.release();
+                }
+            } finally {
+                walk.release();
+            }
+        } catch (IOException e) {
+            throw new GitException("Could not merge " + commit.name() + " into " + target.name() + " in memory", e);
+        }
+    }
+
+    public boolean hasUnmergedPaths() throws GitException {
+        try {
+            DirCache dc = getRepository().readDirCache();
+            for (int i = 0; i < dc.getEntryCount(); i++) {
+                if (dc.getEntry(i).getStage() != DirCacheEntry.STAGE_0) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            throw new GitException("Could not read the index", e);
+        }
+    }
+
+    public void abortMerge() throws GitException {
+        // like git merge --abort, which needs git 1.7.4
+        launchCommand("reset", "--merge");
+    }
+
     /**
      * Init submodules.
      *
@@ -363,13 +691,198 @@ public class GitAPI implements IGitAPI {
      * @throws GitException if executing the Git command fails
      */
     public void submoduleUpdate(boolean recursive) throws GitException {
-        ArgumentListBuilder args = new ArgumentListBuilder();
-        args.add("submodule", "update");
+        SubmoduleTasks tasks = new SubmoduleTasks(listener);
+        submoduleUpdate(recursive, "", tasks);
+        tasks.await();
+    }
+
+    /**
+     * Updates every submodule with its own <tt>git submodule update</tt>, concurrently, and recurses into them.
+     */
+    private void submoduleUpdate(final boolean recursive, final String prefix, SubmoduleTasks tasks)
+        throws GitException {
         if (recursive) {
-            args.add("--init", "--recursive");
+            // Registered once up front, concurrent updates would contend for the lock of the configuration
+            submoduleInit();
+        }
+        for (final String path : getSubmodulePaths()) {
+            tasks.submit("Updated submodule " + prefix + path, new SubmoduleTasks.Task() {
+                public void run(SubmoduleTasks tasks) throws GitException {
+                    launchCommand("submodule", "update", "--", path);
+                    if (recursive) {
+                        GitAPI submodule = new GitAPI(gitExe, workspace.child(path), listener, environment);
+                        if (submodule.hasGitModules()) {
+                            submodule.submoduleUpdate(true, prefix + path + "/", tasks);
+                        }
+                    }
+                }
+            });
         }
+    }
 
-        launchCommand(args);
+    /**
+     * Returns the paths of the submodules in the index.
+     */
+    private List<String> getSubmodulePaths() throws GitException {
+        List<String> paths = new ArrayList<String>();
+        for (String entry : splitNul(launchCommand("ls-files", "-z", "--stage"))) {
+            // <mode> <object> <stage>\t<path>
+            if (entry.startsWith("160000 ")) {
+                paths.add(entry.substring(entry.indexOf('\t') + 1));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Removes untracked and ignored files and directories like <tt>git clean -fdx</tt>, without walking the files
+     * of the work tree.
+     * <p/>
+     * The untracked paths found by the previous fast clean, typically the output directories of the build, are
+     * deleted first, unless they have been added to the index since. The remaining untracked paths are then listed
+     * from the index by <tt>git ls-files --others --directory</tt>, which reports an untracked directory once
+     * instead of file by file. Directories holding another repository are kept, as <tt>git clean</tt> does.
+     * The untracked paths are recorded in the git directory for the next fast clean.
+     *
+     * @throws GitException if the untracked paths cannot be listed or deleted.
+     */
+    public void fastClean() throws GitException {
+        File root = new File(workspace.getRemote());
+        File record = new File(getGitDirectory(root), UNTRACKED_PATHS_FILE);
+        Set<String> untracked = new LinkedHashSet<String>();
+        try {
+            if (record.exists()) {
+                List<String> previous = new ArrayList<String>();
+                for (String path : FileUtils.readLines(record, "UTF-8")) {
+                    if (path.length() > 0 && new File(root, path).exists()) {
+                        previous.add(path);
+                    }
+                }
+                if (!previous.isEmpty()) {
+                    Set<String> tracked = listTracked(previous);
+                    for (String path : previous) {
+                        if (!isTracked(path, tracked) && deleteUntracked(root, path)) {
+                            untracked.add(path);
+                        }
+                    }
+                }
+            }
+            for (String path : splitNul(launchCommand("ls-files", "-z", "--others", "--directory"))) {
+                if (deleteUntracked(root, path)) {
+                    untracked.add(path);
+                }
+            }
+            FileUtils.writeLines(record, "UTF-8", untracked);
+        } catch (IOException e) {
+            throw new GitException(Messages.GitAPI_Workspace_FailedCleanupMsg(), e);
+        }
+    }
+
+    /**
+     * Runs {@link #fastClean()} in every submodule, several submodules at a time.
+     *
+     * @param recursive also clean the submodules of the submodules.
+     * @throws GitException if a submodule cannot be cleaned.
+     */
+    public void submoduleFastClean(boolean recursive) throws GitException {
+        ArgumentListBuilder args = new ArgumentListBuilder("submodule", "--quiet", "foreach");
+        if (recursive) {
+            args.add("--recursive");
+        }
+        args.add("pwd");
+        SubmoduleTasks tasks = new SubmoduleTasks(listener);
+        BufferedReader rdr = new BufferedReader(new StringReader(launchCommand(args)));
+        try {
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                final GitAPI submodule = new GitAPI(gitExe, new FilePath(new File(line.trim())), listener,
+                    environment);
+                tasks.submit("Cleaned submodule " + line.trim(), new SubmoduleTasks.Task() {
+                    public void run(SubmoduleTasks tasks) throws GitException {
+                        submodule.fastClean();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new GitException("Error listing submodules", e);
+        } finally {
+            tasks.await();
+        }
+    }
+
+    /**
+     * Lists the tracked files among or below the given paths, with as many <tt>git ls-files</tt> as needed to keep
+     * each command line below {@link #MAX_ARGUMENTS_LENGTH}.
+     */
+    private Set<String> listTracked(List<String> paths) throws GitException {
+        Set<String> tracked = new HashSet<String>();
+        int start = 0;
+        while (start < paths.size()) {
+            ArgumentListBuilder args = new ArgumentListBuilder("ls-files", "-z", "--");
+            int length = 0;
+            int end = start;
+            // At least one path per batch, however long
+            while (end < paths.size() && (end == start || length + paths.get(end).length() < MAX_ARGUMENTS_LENGTH)) {
+                length += paths.get(end).length() + 1;
+                args.add(paths.get(end++));
+            }
+            tracked.addAll(splitNul(launchCommand(args)));
+            start = end;
+        }
+        return tracked;
+    }
+
+    private static boolean isTracked(String path, Set<String> tracked) {
+        String directory = path.endsWith("/") ? path : path + "/";
+        for (String file : tracked) {
+            if (file.equals(path) || file.startsWith(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean deleteUntracked(File root, String path) throws IOException {
+        File file = new File(root, path);
+        if (file.isDirectory() && new File(file, Constants.DOT_GIT).exists()) {
+            // Nested repository, git clean -fdx leaves it alone too
+            return false;
+        }
+        Util.deleteRecursive(file);
+        return true;
+    }
+
+    private static List<String> splitNul(String output) {
+        List<String> paths = new ArrayList<String>();
+        for (String path : output.split("\u0000")) {
+            if (path.length() > 0) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Returns the git directory of the given work tree, following the <tt>gitdir:</tt> link submodules may have.
+     */
+    private static File getGitDirectory(File root) throws GitException {
+        File dotGit = new File(root, Constants.DOT_GIT);
+        if (!dotGit.isFile()) {
+            return dotGit;
+        }
+        try {
+            String link = FileUtils.readFileToString(dotGit, "UTF-8").trim();
+            if (link.startsWith("gitdir:")) {
+                File gitDir = new File(link.substring("gitdir:".length()).trim());
+                return gitDir.isAbsolute() ? gitDir : new File(root, gitDir.getPath());
+            }
+            return dotGit;
+        } catch (IOException e) {
+            throw new GitException(Messages.GitAPI_Repository_FailedCheckMsg(), e);
+        }
     }
 
     /**
@@ -433,6 +946,20 @@ public class GitAPI implements IGitAPI {
         launchCommand("config", "remote." + name + ".url", url);
     }
 
+    public void setRemote(RemoteConfig remote) throws GitException {
+        String name = remote.getName();
+        setRemoteUrl(name, remote.getURIs().get(0).toPrivateString());
+        String key = "remote." + name + ".fetch";
+        List<RefSpec> refspecs = remote.getFetchRefSpecs();
+        for (int i = 0; i < refspecs.size(); i++) {
+            if (i == 0) {
+                launchCommand("config", "--replace-all", key, refspecs.get(i).toString());
+            } else {
+                launchCommand("config", "--add", key, refspecs.get(i).toString());
+            }
+        }
+    }
+
     /**
      * From a given repository, get a remote's URL
      *
@@ -662,14 +1189,52 @@ public class GitAPI implements IGitAPI {
         setupSubmoduleUrls(remote, listener);
     }
 
+    /**
+     * Set up submodule URLs so that they correspond to the given remote. Skipped when neither the
+     * <tt>.gitmodules</tt> of HEAD nor the URL of the remote changed since the last time.
+     */
     public void setupSubmoduleUrls(String remote, TaskListener listener) throws GitException {
-        // This is to make sure that we don't miss any new submodules or
-        // changes in submodule origin paths...
-        submoduleInit();
-        submoduleSync();
-        // This allows us to seamlessly use bare and non-bare superproject
-        // repositories.
-        fixSubmoduleUrls(remote, listener);
+        File record = new File(getGitDirectory(new File(workspace.getRemote())), SUBMODULES_FINGERPRINT_FILE);
+        String fingerprint = getSubmodulesFingerprint(remote);
+        try {
+            if (fingerprint != null && record.exists()
+                && fingerprint.equals(FileUtils.readFileToString(record, "UTF-8"))) {
+                listener.getLogger().println("Submodules and remote " + remote + " unchanged, skipping their setup");
+                return;
+            }
+            record.delete();
+
+            // This is to make sure that we don't miss any new submodules or
+            // changes in submodule origin paths...
+            submoduleInit();
+            submoduleSync();
+            // This allows us to seamlessly use bare and non-bare superproject
+            // repositories.
+            fixSubmoduleUrls(remote, listener);
+
+            if (fingerprint != null) {
+                FileUtils.writeStringToFile(record, fingerprint, "UTF-8");
+            }
+        } catch (IOException e) {
+            throw new GitException("Could not record the submodule setup", e);
+        }
+    }
+
+    /**
+     * Returns the blob of the <tt>.gitmodules</tt> of HEAD along with the remote and its URL, or null if there is no
+     * such blob.
+     */
+    private String getSubmodulesFingerprint(String remote) throws GitException {
+        try {
+            Repository repo = getRepository();
+            ObjectId gitmodules = repo.resolve(Constants.HEAD + ":.gitmodules");
+            if (gitmodules == null) {
+                return null;
+            }
+            return gitmodules.name() + " " + remote + " " + repo.getConfig().getString("remote", remote, "url");
+        } catch (IOException e) {
+            throw new GitException("Could not read .gitmodules", e);
+        }
     }
 
     public void tag(String tagName, String comment) throws GitException {
@@ -732,7 +1297,88 @@ public class GitAPI implements IGitAPI {
         }
     }
 
+    /**
+     * Launches a command in the workspace and hands its standard output to the handler line by line while it runs,
+     * instead of collecting all of it first. The error output is kept apart for the exception if the command fails.
+     *
+     * @param args command arguments.
+     * @param handler handler of the output lines.
+     * @throws GitException if the command fails, or the handler throws.
+     */
+    public void launchCommand(ArgumentListBuilder args, LineHandler handler) throws GitException {
+        args.prepend(getGitExe());
+        LineDispatcher out = new LineDispatcher(handler);
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status;
+        try {
+            status = launcher.launch().cmds(args.toCommandArray()).envs(environment).stdout(out).stderr(err)
+                .pwd(workspace).join();
+            out.close();
+        } catch (Exception e) {
+            throw new GitException("Error performing command: " + StringUtils.join(args.toCommandArray(), " ")
+                + "\n" + e.getMessage(), e);
+        }
+        if (status != 0) {
+            throw new GitException("Command \"" + StringUtils.join(args.toCommandArray(), " ")
+                + "\" returned status code " + status + ": " + err.toString());
+        }
+        if (out.failure != null) {
+            throw out.failure;
+        }
+    }
+
+    /**
+     * Receives the output of a git command line by line, while the command runs.
+     */
+    public interface LineHandler {
+        /**
+         * Handles one line of output.
+         *
+         * @param line line, without its terminator.
+         * @throws GitException to fail the command.
+         */
+        void handle(String line) throws GitException;
+    }
+
+    /**
+     * Splits the output of a command into lines. The lines are handled on the thread copying the output, so the
+     * first failure is kept to be rethrown once the command has finished, and the remaining lines are skipped.
+     */
+    private static final class LineDispatcher extends LineTransformationOutputStream {
+        private final LineHandler handler;
+        private GitException failure;
+
+        private LineDispatcher(LineHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            if (failure != null) {
+                return;
+            }
+            while (len > 0 && (b[len - 1] == '\n' || b[len - 1] == '\r')) {
+                len--;
+            }
+            try {
+                handler.handle(new String(b, 0, len));
+            } catch (GitException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new GitException("Error handling command output", e);
+            }
+        }
+    }
+
     public void push(RemoteConfig repository, String refspec) throws GitException {
+        if (JGIT_TRANSPORT && refspec != null) {
+            List<String> rejected = pushInProcess(repository, Collections.singletonList(refspec),
+                new TransferProgressMonitor(listener, TRANSPORT_TIMEOUT));
+            if (!rejected.isEmpty()) {
+                throw new GitException("Could not push " + refspec + " to " + repository.getName());
+            }
+            return;
+        }
         ArgumentListBuilder args = new ArgumentListBuilder();
         args.add("push", repository.getURIs().get(0).toPrivateString());
 
@@ -745,29 +1391,65 @@ public class GitAPI implements IGitAPI {
         // That are possible.
     }
 
-    private List<Branch> parseBranches(String fos) throws GitException {
-        // TODO: git branch -a -v --abbrev=0 would do this in one shot..
+    public List<String> push(RemoteConfig repository, List<String> refspecs) throws GitException {
+        if (JGIT_TRANSPORT) {
+            return pushInProcess(repository, refspecs, new TransferProgressMonitor(listener, TRANSPORT_TIMEOUT));
+        }
+        PushOutput output = push(repository.getURIs().get(0).toPrivateString(), refspecs);
+        if (output.status != 0 && output.refs.isEmpty()) {
+            throw new GitException("Could not push to " + repository.getName() + ": " + output.errors);
+        }
 
-        List<Branch> tags = new ArrayList<Branch>();
+        List<String> rejected = new ArrayList<String>();
+        for (Map.Entry<String, String> ref : output.refs.entrySet()) {
+            String status = ref.getValue();
+            listener.getLogger().println("  " + ref.getKey() + ": " + status.substring(2));
+            if (status.charAt(0) == '!') {
+                rejected.add(ref.getKey());
+            }
+        }
+        if (output.status != 0 && rejected.isEmpty()) {
+            throw new GitException("Could not push to " + repository.getName() + ": " + output.errors);
+        }
+        return rejected;
+    }
 
-        BufferedReader rdr = new BufferedReader(new StringReader(fos));
-        String line;
+    /**
+     * Runs a single git push of all the refspecs and parses the status of each ref from its porcelain output.
+     */
+    private PushOutput push(String url, List<String> refspecs) throws GitException {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(getGitExe(), "push", "--porcelain");
+        args.add(url);
+        args.add(refspecs.toArray(new String[refspecs.size()]));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PushOutput output = new PushOutput();
         try {
-            while ((line = rdr.readLine()) != null) {
-                // Ignore the 1st
-                line = line.substring(2);
-                // Ignore '(no branch)' or anything with " -> ", since I think
-                // that's just noise
-                if ((!line.startsWith("("))
-                    && (line.indexOf(" -> ") == -1)) {
-                    tags.add(new Branch(line, revParse(line)));
-                }
+            output.status = launcher.launch().cmds(args.toCommandArray()).envs(environment).stdout(out).stderr(err)
+                .pwd(workspace).join();
+        } catch (Exception e) {
+            throw new GitException("Error performing command: " + StringUtils.join(args.toCommandArray(), " ")
+                + "\n" + e.getMessage(), e);
+        }
+        output.errors = err.toString().trim();
+
+        // <flag> TAB <from>:<to> TAB <summary>
+        for (String line : out.toString().split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length >= 3 && fields[0].length() == 1) {
+                String to = fields[1].substring(fields[1].indexOf(':') + 1);
+                output.refs.put(to, fields[0] + " " + fields[2]);
             }
-        } catch (IOException e) {
-            throw new GitException("Error parsing branches", e);
         }
+        return output;
+    }
 
-        return tags;
+    private static final class PushOutput {
+        private int status;
+        private String errors;
+        private final Map<String, String> refs = new LinkedHashMap<String, String>();
     }
 
     public List<Branch> getBranches() throws GitException {
@@ -782,9 +1464,77 @@ public class GitAPI implements IGitAPI {
         return parseRefList(refList);
     }
 
+    /**
+     * Lists the branches containing the given revision, like <tt>git branch -a --contains</tt> does.
+     * <p/>
+     * All branches are listed in one go and a single {@link RevWalk} decides which of them contain the revision:
+     * the commits which are not ancestors of the revision's parents are walked parents first, and a commit is
+     * flagged once one of its parents is flagged, starting with the revision itself.
+     *
+     * @param revspec revision.
+     * @return local branches and remote branches prefixed with "remotes/", as named by git.
+     * @throws GitException if the revision cannot be resolved.
+     */
     public List<Branch> getBranchesContaining(String revspec)
         throws GitException {
-        return parseBranches(launchCommand("branch", "-a", "--contains", revspec));
+        verifyGitRepository();
+        Repository db = jGitDelegate.getRepository();
+        RevWalk walk = new RevWalk(db);
+        try {
+            ObjectId id = db.resolve(revspec);
+            if (id == null) {
+                throw new GitException(Messages.GitAPI_Branch_ContainsErrorMsg(revspec));
+            }
+            RevCommit target = walk.parseCommit(id);
+            RevFlag contains = walk.newFlag("contains");
+            target.add(contains);
+
+            Map<Ref, RevCommit> tips = new LinkedHashMap<Ref, RevCommit>();
+            for (Ref ref : jGitDelegate.branchList().setListMode(ListBranchCommand.ListMode.ALL).call()) {
+                // Symbolic refs, e.g. origin/HEAD, are only noise
+                if (ref.isSymbolic() || ref.getObjectId() == null) {
+                    continue;
+                }
+                RevObject tip = walk.parseAny(ref.getObjectId());
+                if (tip instanceof RevCommit) {
+                    tips.put(ref, (RevCommit) tip);
+                    walk.markStart((RevCommit) tip);
+                }
+            }
+            for (RevCommit parent : target.getParents()) {
+                walk.markUninteresting(walk.parseCommit(parent));
+            }
+            walk.sort(RevSort.TOPO);
+            walk.sort(RevSort.REVERSE, true);
+            for (RevCommit commit = walk.next(); commit != null; commit = walk.next()) {
+                for (RevCommit parent : commit.getParents()) {
+                    if (parent.has(contains)) {
+                        commit.add(contains);
+                        break;
+                    }
+                }
+            }
+
+            List<Branch> result = new ArrayList<Branch>();
+            for (Map.Entry<Ref, RevCommit> tip : tips.entrySet()) {
+                if (tip.getValue().has(contains)) {
+                    result.add(new Branch(branchName(tip.getKey()), tip.getValue()));
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            throw new GitException(Messages.GitAPI_Branch_ContainsErrorMsg(revspec), e);
+        } finally {
+            walk.release();
+        }
+    }
+
+    private static String branchName(Ref ref) {
+        String name = ref.getName();
+        if (name.startsWith(Constants.R_HEADS)) {
+            return name.substring(Constants.R_HEADS.length());
+        }
+        return name.startsWith(Constants.R_REFS) ? name.substring(Constants.R_REFS.length()) : name;
     }
 
     public void checkout(String commitish) throws GitException {
@@ -793,26 +1543,73 @@ public class GitAPI implements IGitAPI {
 
     public void checkoutBranch(String branch, String commitish) throws GitException {
         verifyGitRepository();
+        Repository repo = getRepository();
+        RevWalk walk = new RevWalk(repo);
         try {
-            // First, checkout to detached HEAD, so we can delete the branch.
-            launchCommand("checkout", "-f", commitish);
-
-            if (null != branch) {
-                jGitDelegate.checkout()
-                    .setForce(true)
-                    .setStartPoint(commitish)
-                    .setName(branch)
-                    .setCreateBranch(true)
-                    .call();
+            ObjectId id = repo.resolve(commitish + "^{commit}");
+            if (id == null) {
+                throw new GitException(Messages.GitAPI_Branch_CheckoutErrorMsg(branch, commitish));
             }
-        } catch (GitAPIException e) {
+            RevCommit commit = walk.parseCommit(id);
+
+            // Force the work tree and the index to the target tree in one pass, like reset --hard. Only entries
+            // which differ from the index, or which were modified in the work tree, are rewritten.
+            DirCache dc = repo.lockDirCache();
+            DirCacheCheckout checkout;
+            try {
+                checkout = new DirCacheCheckout(repo, dc, commit.getTree());
+                checkout.setFailOnConflict(false);
+                checkout.checkout();
+            } finally {
+                dc.unlock();
+            }
+
+            String message = "checkout: moving to " + (branch == null ? commitish : branch);
+            if (branch == null) {
+                RefUpdate head = repo.updateRef(Constants.HEAD, true);
+                head.setNewObjectId(commit);
+                head.setRefLogMessage(message, false);
+                checkRefUpdate(head.forceUpdate(), branch, commitish);
+            } else {
+                RefUpdate ref = repo.updateRef(Constants.R_HEADS + branch);
+                ref.setNewObjectId(commit);
+                ref.setRefLogMessage(message, false);
+                checkRefUpdate(ref.forceUpdate(), branch, commitish);
+                RefUpdate head = repo.updateRef(Constants.HEAD);
+                head.setRefLogMessage(message, false);
+                checkRefUpdate(head.link(ref.getName()), branch, commitish);
+            }
+
+            // Conclude any merge in progress, as git checkout -f does, so that it does not leak into the next one
+            repo.writeMergeHeads(null);
+            repo.writeMergeCommitMsg(null);
+            new File(repo.getDirectory(), "MERGE_MODE").delete();
+
+            listener.getLogger().println("Checked out " + commit.name() + ": "
+                + checkout.getUpdated().size() + " files updated, " + checkout.getRemoved().size() + " removed");
+        } catch (IOException e) {
             throw new GitException(Messages.GitAPI_Branch_CheckoutErrorMsg(branch, commitish), e);
+        } finally {
+            walk.release();
+        }
+    }
+
+    private static void checkRefUpdate(RefUpdate.Result result, String branch, String commitish)
+        throws GitException {
+        switch (result) {
+            case NEW:
+            case FORCED:
+            case FAST_FORWARD:
+            case NO_CHANGE:
+                return;
+            default:
+                throw new GitException(Messages.GitAPI_Branch_CheckoutErrorMsg(branch, commitish) + ": " + result);
         }
     }
 
     public boolean tagExists(String tagName) throws GitException {
         tagName = tagName.replace(' ', '_');
-        return launchCommand("tag", "-l", tagName).trim().equals(tagName);
+        return getTagIndex().contains(tagName);
     }
 
     public void deleteBranch(String name) throws GitException {
@@ -833,22 +1630,23 @@ public class GitAPI implements IGitAPI {
         }
     }
 
-    public List<IndexEntry> lsTree(String treeIsh) throws GitException {
-        List<IndexEntry> entries = new ArrayList<IndexEntry>();
-        String result = launchCommand("ls-tree", treeIsh);
-
-        BufferedReader rdr = new BufferedReader(new StringReader(result));
-        String line;
+    public void appendNote(String note, String notesRef) throws GitException {
         try {
-            while ((line = rdr.readLine()) != null) {
+            launchCommand("notes", "--ref=" + notesRef, "append", "-m", note);
+        } catch (GitException e) {
+            throw new GitException("Could not append note " + note, e);
+        }
+    }
+
+    public List<IndexEntry> lsTree(String treeIsh) throws GitException {
+        final List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        launchCommand(new ArgumentListBuilder("ls-tree", treeIsh), new LineHandler() {
+            public void handle(String line) {
                 String[] entry = line.split("\\s+");
                 entries.add(new IndexEntry(entry[0], entry[1], entry[2],
                     entry[3]));
             }
-        } catch (IOException e) {
-            throw new GitException("Error parsing ls tree", e);
-        }
-
+        });
         return entries;
     }
 
@@ -861,23 +1659,128 @@ public class GitAPI implements IGitAPI {
     }
 
     public List<ObjectId> revList(String... extraArgs) throws GitException {
-        List<ObjectId> entries = new ArrayList<ObjectId>();
+        final ObjectIdArray entries = new ObjectIdArray();
         ArgumentListBuilder args = new ArgumentListBuilder("rev-list");
         args.add(extraArgs);
-        String result = launchCommand(args);
-        BufferedReader rdr = new BufferedReader(new StringReader(result));
-        String line;
-
-        try {
-            while ((line = rdr.readLine()) != null) {
+        launchCommand(args, new LineHandler() {
+            public void handle(String line) {
                 // Add the SHA1
                 entries.add(ObjectId.fromString(line));
             }
+        });
+        entries.trimToSize();
+        return entries;
+    }
+
+    public RevListIterator revListBranchIterator(String branchId) throws GitException {
+        try {
+            Repository repo = getRepository();
+            ObjectId id = repo.resolve(branchId + "^{commit}");
+            if (id == null) {
+                throw new GitException("Could not resolve " + branchId);
+            }
+            RevWalkIterator iterator = new RevWalkIterator(repo);
+            boolean started = false;
+            try {
+                iterator.markStart(id);
+                started = true;
+            } finally {
+                if (!started) {
+                    iterator.close();
+                }
+            }
+            return iterator;
         } catch (IOException e) {
-            throw new GitException("Error parsing rev list", e);
+            throw new GitException("Error listing the commits of " + branchId, e);
         }
+    }
 
-        return entries;
+    public RevListIterator revListAllIterator() throws GitException {
+        try {
+            Repository repo = getRepository();
+            RevWalkIterator iterator = new RevWalkIterator(repo);
+            boolean started = false;
+            try {
+                for (Ref ref : repo.getAllRefs().values()) {
+                    if (ref.getObjectId() == null) {
+                        continue;
+                    }
+                    try {
+                        iterator.markStart(ref.getObjectId());
+                    } catch (MissingObjectException e) {
+                        // Dangling ref, e.g. left behind by an interrupted fetch, as git rev-list --all skips it
+                        listener.getLogger().println("Ignoring " + ref.getName() + " which points to a missing object");
+                    }
+                }
+                // A detached HEAD, e.g. a pre-build merge, is not among the refs
+                ObjectId head = repo.resolve(Constants.HEAD);
+                if (head != null) {
+                    iterator.markStart(head);
+                }
+                started = true;
+            } finally {
+                if (!started) {
+                    iterator.close();
+                }
+            }
+            return iterator;
+        } catch (IOException e) {
+            throw new GitException("Error listing the commits of all refs", e);
+        }
+    }
+
+    /**
+     * Walks the commits in process, without keeping their messages. Refs which do not lead to a commit are ignored.
+     */
+    private static final class RevWalkIterator implements RevListIterator {
+        private final RevWalk walk;
+        private RevCommit next;
+        private boolean started;
+
+        private RevWalkIterator(Repository repo) {
+            walk = new RevWalk(repo);
+            walk.setRetainBody(false);
+        }
+
+        private void markStart(ObjectId id) throws IOException {
+            RevObject object = walk.peel(walk.parseAny(id));
+            if (object instanceof RevCommit) {
+                walk.markStart((RevCommit) object);
+            }
+        }
+
+        public boolean hasNext() {
+            if (!started) {
+                started = true;
+                advance();
+            }
+            return next != null;
+        }
+
+        public ObjectId next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ObjectId commit = next.copy();
+            advance();
+            return commit;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            walk.release();
+        }
+
+        private void advance() {
+            try {
+                next = walk.next();
+            } catch (IOException e) {
+                throw new GitException("Error walking the commits", e);
+            }
+        }
     }
 
     public boolean isCommitInRepo(String sha1) {
@@ -962,7 +1865,28 @@ public class GitAPI implements IGitAPI {
     }
 
     public String getAllLogEntries(String branch) {
-        return launchCommand("log", "--all", "--pretty=format:'%H#%ct'", branch);
+        final StringBuilder entries = new StringBuilder();
+        getAllLogEntries(branch, new LineHandler() {
+            public void handle(String line) {
+                if (entries.length() > 0) {
+                    entries.append('\n');
+                }
+                entries.append(line);
+            }
+        });
+        return entries.toString();
+    }
+
+    /**
+     * Streams the log entries of all the refs and the branch, one "'SHA1#commit time'" line per commit, to the
+     * handler.
+     *
+     * @param branch branch.
+     * @param handler handler of the entries.
+     * @throws GitException if git log fails.
+     */
+    public void getAllLogEntries(String branch, LineHandler handler) throws GitException {
+        launchCommand(new ArgumentListBuilder("log", "--all", "--pretty=format:'%H#%ct'", branch), handler);
     }
 
     protected Repository getRepository() throws IOException {
@@ -970,38 +1894,45 @@ public class GitAPI implements IGitAPI {
         return jGitDelegate.getRepository();
     }
 
+    /**
+     * Returns the tags pointing at the given revision. Annotated tags are found by the commit they tag.
+     *
+     * @param revName revision.
+     * @return tags.
+     * @throws GitException if the repository is not valid.
+     * @throws IOException if the revision or the tags cannot be read.
+     */
     public List<Tag> getTagsOnCommit(String revName) throws GitException, IOException {
         Repository db = getRepository();
-        ObjectId commit = db.resolve(revName);
-        List<Tag> result = new ArrayList<Tag>();
-        if (null != commit) {
-            for (final Map.Entry<String, Ref> tag : db.getTags().entrySet()) {
-                Ref ref = tag.getValue();
-                if (ref.getObjectId().equals(commit)) {
-                    result.add(new Tag(tag.getKey(), ref.getObjectId()));
-                }
-            }
+        ObjectId id = db.resolve(revName);
+        if (null == id) {
+            return new ArrayList<Tag>();
+        }
+        RevWalk walk = new RevWalk(db);
+        try {
+            ObjectId commit = walk.peel(walk.parseAny(id));
+            tagIndex.refresh(db);
+            return tagIndex.getTagsOn(commit);
+        } finally {
+            walk.release();
         }
-        return result;
-
     }
 
     public Set<String> getTagNames(String tagPattern) throws GitException {
-        try {
-            ArgumentListBuilder args = new ArgumentListBuilder();
-            args.add("tag", "-l", tagPattern);
-
-            String result = launchCommandIn(args, workspace);
+        return getTagIndex().getNames(tagPattern);
+    }
 
-            Set<String> tags = new HashSet<String>();
-            BufferedReader rdr = new BufferedReader(new StringReader(result));
-            String tag;
-            while ((tag = rdr.readLine()) != null) {
-                // Add the SHA1
-                tags.add(tag);
-            }
-            return tags;
-        } catch (Exception e) {
+    /**
+     * Returns the tag index, up to date with the refs of the repository.
+     *
+     * @return tag index.
+     * @throws GitException if the tags cannot be read.
+     */
+    private TagIndex getTagIndex() throws GitException {
+        try {
+            tagIndex.refresh(getRepository());
+            return tagIndex;
+        } catch (IOException e) {
             throw new GitException("Error retrieving tag names", e);
         }
     }
@@ -38,6 +38,7 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
 import hudson.plugins.git.opt.PreBuildMergeOptions;
+import hudson.plugins.git.util.BuildMarker;
 import hudson.plugins.git.util.GitConstants;
 import hudson.remoting.VirtualChannel;
 import hudson.scm.SCM;
@@ -46,11 +47,27 @@ import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
 import hudson.util.FormValidation;
+import hudson.util.IOException2;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.lang.StringUtils;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.kohsuke.stapler.AncestorInPath;
@@ -60,6 +77,16 @@ import org.kohsuke.stapler.QueryParameter;
 public class GitPublisher extends Recorder implements Serializable, MatrixAggregatable {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Maximum number of remotes pushed to at the same time by one build.
+     */
+    public static int PUSH_THREADS = Integer.getInteger(GitPublisher.class.getName() + ".pushThreads", 4);
+
+    /**
+     * Minutes after which the push to one remote is aborted.
+     */
+    public static int PUSH_TIMEOUT_MINUTES = Integer.getInteger(GitPublisher.class.getName() + ".pushTimeout", 10);
+
     /**
      * Store a config version so we're able to migrate config on various
      * functionality upgrades.
@@ -192,41 +219,77 @@ public class GitPublisher extends Recorder implements Serializable, MatrixAggreg
 
             final EnvVars environment = tempEnvironment;
             final FilePath workingDirectory = gitSCM.workingDirectory(workspacePath);
+            final BuildMarker marker = new BuildMarker(projectName, buildNumber,
+                ((GitSCM.DescriptorImpl) gitSCM.getDescriptor()).isBuildMarkerNotes());
 
+            // Validate and expand the configuration here, everything is then pushed by a single callable.
             boolean pushResult = true;
-            // If we're pushing the merge back...
-            if (pushMerge) {
-                boolean mergeResult;
-                try {
-                    mergeResult = workingDirectory.act(new FileCallable<Boolean>() {
-                        private static final long serialVersionUID = 1L;
-
-                        public Boolean invoke(File workspace,
-                                              VirtualChannel channel) throws IOException {
-
-                            IGitAPI git = new GitAPI(
-                                gitExe, new FilePath(workspace),
-                                listener, environment);
-                            // We delete the old tag generated by the SCM plugin
-                            String tagName = new StringBuilder()
-                                .append(GitConstants.INTERNAL_TAG_NAME_PREFIX)
-                                .append(GitConstants.HYPHEN_SYMBOL)
-                                .append(projectName)
-                                .append(GitConstants.HYPHEN_SYMBOL)
-                                .append(buildNumber)
-                                .toString();
-
-                            git.deleteTag(tagName);
-
-                            // And add the success / fail state into the tag.
-                            tagName += "-" + buildResult.toString();
+            final List<TagToPush> tags = new ArrayList<TagToPush>();
+            if (isPushTags()) {
+                for (TagToPush t : tagsToPush) {
+                    if (t.getTagName() == null) {
+                        listener.getLogger().println("No tag to push defined");
+                        pushResult = false;
+                    } else if (t.getTargetRepoName() == null) {
+                        listener.getLogger().println("No target repo to push to defined");
+                        pushResult = false;
+                    } else {
+                        tags.add(new TagToPush(environment.expand(t.getTargetRepoName()),
+                            environment.expand(t.getTagName()), t.isCreateTag()));
+                    }
+                }
+            }
+            final List<BranchToPush> branches = new ArrayList<BranchToPush>();
+            if (isPushBranches()) {
+                for (BranchToPush b : branchesToPush) {
+                    // As before, a misconfigured branch stops the branches after it from being pushed
+                    if (b.getBranchName() == null) {
+                        listener.getLogger().println("No branch to push defined");
+                        pushResult = false;
+                        break;
+                    } else if (b.getTargetRepoName() == null) {
+                        listener.getLogger().println("No branch repo to push to defined");
+                        pushResult = false;
+                        break;
+                    } else {
+                        branches.add(new BranchToPush(environment.expand(b.getTargetRepoName()),
+                            environment.expand(b.getBranchName())));
+                    }
+                }
+            }
+            if (!pushMerge && tags.isEmpty() && branches.isEmpty()) {
+                return pushResult;
+            }
 
-                            git.tag(tagName, GitConstants.INTERNAL_TAG_COMMENT_PREFIX + buildNumber);
+            boolean batchResult;
+            try {
+                batchResult = workingDirectory.act(new FileCallable<Boolean>() {
+                    private static final long serialVersionUID = 1L;
+
+                    public Boolean invoke(File workspace, VirtualChannel channel) throws IOException {
+                        IGitAPI git = new GitAPI(gitExe, new FilePath(workspace), listener, environment);
+                        boolean result = true;
+
+                        // refspecs grouped by remote, so that each remote is pushed to over one connection
+                        Map<String, List<String>> refspecs = new LinkedHashMap<String, List<String>>();
+                        Map<String, RemoteConfig> remotes = new HashMap<String, RemoteConfig>();
+
+                        // If we're pushing the merge back...
+                        if (pushMerge) {
+                            // We replace the marker generated by the SCM plugin by one with the success / fail
+                            // state in it.
+                            String tagName = null;
+                            try {
+                                tagName = marker.recordResult(git, buildResult);
+                            } catch (GitException e) {
+                                listener.error("Failed to record the result of the build: " + e.getMessage());
+                                result = false;
+                            }
 
                             PreBuildMergeOptions mergeOptions = gitSCM.getMergeOptions();
 
-                            if (mergeOptions.doMerge() && buildResult.isBetterOrEqualTo(
-                                Result.SUCCESS)) {
+                            if (tagName != null && mergeOptions.doMerge()
+                                && buildResult.isBetterOrEqualTo(Result.SUCCESS)) {
                                 RemoteConfig remote = mergeOptions.getMergeRemote();
                                 listener.getLogger().println(new StringBuilder().append("Pushing result ")
                                     .append(tagName)
@@ -236,161 +299,180 @@ public class GitPublisher extends Recorder implements Serializable, MatrixAggreg
                                     .append(remote.getName())
                                     .append(" repository")
                                     .toString());
-
-                                git.push(remote, "HEAD:" + mergeOptions.getMergeTarget());
-//                            } else {
-                                //listener.getLogger().println("Pushing result " + buildnumber + " to origin repository");
-                                //git.push(null);
+                                addRefSpec(refspecs, remotes, remote, "HEAD:" + mergeOptions.getMergeTarget());
                             }
-
-                            return true;
                         }
-                    });
-                } catch (Throwable e) {
-                    listener.error("Failed to push merge to origin repository: " + e.getMessage());
-                    build.setResult(Result.FAILURE);
-                    mergeResult = false;
-
-                }
-
-                if (!mergeResult) {
-                    pushResult = false;
-                }
-            }
-            if (isPushTags()) {
-                boolean allTagsResult = true;
-                for (final TagToPush t : tagsToPush) {
-                    boolean tagResult = true;
-                    if (t.getTagName() == null) {
-                        listener.getLogger().println("No tag to push defined");
-                        tagResult = false;
-                    }
-                    if (t.getTargetRepoName() == null) {
-                        listener.getLogger().println("No target repo to push to defined");
-                        tagResult = false;
-                    }
-                    if (tagResult) {
-                        final String tagName = environment.expand(t.getTagName());
-                        final String targetRepo = environment.expand(t.getTargetRepoName());
-
-                        try {
-                            tagResult = workingDirectory.act(new FileCallable<Boolean>() {
-                                private static final long serialVersionUID = 1L;
-
-                                public Boolean invoke(File workspace,
-                                                      VirtualChannel channel) throws IOException {
-
-                                    IGitAPI git = new GitAPI(gitExe, new FilePath(workspace),
-                                        listener, environment);
 
-                                    RemoteConfig remote = gitSCM.getRepositoryByName(targetRepo);
-
-                                    if (remote == null) {
-                                        listener.getLogger()
-                                            .println("No repository found for target repo name " + targetRepo);
-                                        return false;
-                                    }
+                        for (TagToPush t : tags) {
+                            String tagName = t.getTagName();
+                            RemoteConfig remote = gitSCM.getRepositoryByName(t.getTargetRepoName());
+                            if (remote == null) {
+                                listener.getLogger()
+                                    .println("No repository found for target repo name " + t.getTargetRepoName());
+                                result = false;
+                                continue;
+                            }
 
-                                    if (t.isCreateTag()) {
-                                        if (git.tagExists(tagName)) {
-                                            listener.getLogger()
-                                                .println("Tag " + tagName
-                                                    + " already exists and Create Tag is specified, so failing.");
-                                            return false;
-                                        }
-                                        git.tag(tagName, "Hudson Git plugin tagging with " + tagName);
-                                    } else if (!git.tagExists(tagName)) {
+                            try {
+                                if (t.isCreateTag()) {
+                                    if (git.tagExists(tagName)) {
                                         listener.getLogger()
                                             .println("Tag " + tagName
-                                                + " does not exist and Create Tag is not specified, so failing.");
-                                        return false;
+                                                + " already exists and Create Tag is specified, so failing.");
+                                        result = false;
+                                        continue;
                                     }
+                                    git.tag(tagName, "Hudson Git plugin tagging with " + tagName);
+                                } else if (!git.tagExists(tagName)) {
+                                    listener.getLogger()
+                                        .println("Tag " + tagName
+                                            + " does not exist and Create Tag is not specified, so failing.");
+                                    result = false;
+                                    continue;
+                                }
+                            } catch (GitException e) {
+                                listener.error("Failed to tag " + tagName + ": " + e.getMessage());
+                                result = false;
+                                continue;
+                            }
 
-                                    listener.getLogger().println("Pushing tag " + tagName + " to repo "
-                                        + targetRepo);
-                                    git.push(remote, tagName);
+                            listener.getLogger().println("Pushing tag " + tagName + " to repo "
+                                + t.getTargetRepoName());
+                            addRefSpec(refspecs, remotes, remote, tagName);
+                        }
 
-                                    return true;
-                                }
-                            });
-                        } catch (Throwable e) {
-                            listener.error("Failed to push tag " + tagName + " to " + targetRepo
-                                + ": " + e.getMessage());
-                            build.setResult(Result.FAILURE);
-                            tagResult = false;
+                        for (BranchToPush b : branches) {
+                            RemoteConfig remote = gitSCM.getRepositoryByName(b.getTargetRepoName());
+                            if (remote == null) {
+                                listener.getLogger()
+                                    .println("No repository found for target repo name " + b.getTargetRepoName());
+                                result = false;
+                                continue;
+                            }
+                            listener.getLogger().println("Pushing HEAD to branch " + b.getBranchName() + " at repo "
+                                + b.getTargetRepoName());
+                            addRefSpec(refspecs, remotes, remote, "HEAD:" + b.getBranchName());
                         }
-                    }
 
-                    if (!tagResult) {
-                        allTagsResult = false;
+                        List<String> failures = pushConcurrently(gitExe, workspace, environment, refspecs, remotes,
+                            listener);
+                        for (String failure : failures) {
+                            listener.error("Failed to push: " + failure);
+                            result = false;
+                        }
+                        return result;
                     }
-                }
-                if (!allTagsResult) {
-                    pushResult = false;
-                }
+                });
+            } catch (Throwable e) {
+                listener.error("Failed to push: " + e.getMessage());
+                batchResult = false;
             }
 
-            if (isPushBranches()) {
-                boolean allBranchesResult = true;
-                for (final BranchToPush b : branchesToPush) {
-                    boolean branchResult = true;
-                    if (b.getBranchName() == null) {
-                        listener.getLogger().println("No branch to push defined");
-                        return false;
-                    }
-                    if (b.getTargetRepoName() == null) {
-                        listener.getLogger().println("No branch repo to push to defined");
-                        return false;
-                    }
-                    final String branchName = environment.expand(b.getBranchName());
-                    final String targetRepo = environment.expand(b.getTargetRepoName());
+            if (!batchResult) {
+                build.setResult(Result.FAILURE);
+                pushResult = false;
+            }
+            return pushResult;
+        }
+    }
 
-                    if (branchResult) {
+    /**
+     * Pushes to each remote from its own thread, at most {@link #PUSH_THREADS} at a time, and aborts a push which
+     * takes longer than {@link #PUSH_TIMEOUT_MINUTES}. The output and the failures are reported in the order of the
+     * remotes, whichever finishes first.
+     *
+     * @return the failures, empty if every remote was pushed to.
+     */
+    private static List<String> pushConcurrently(final String gitExe, final File workspace, final EnvVars environment,
+                                                 Map<String, List<String>> refspecs,
+                                                 Map<String, RemoteConfig> remotes, BuildListener listener)
+        throws IOException {
+        final long timeout = TimeUnit.MINUTES.toMillis(PUSH_TIMEOUT_MINUTES);
+        final Timer watchdog = new Timer("git push watchdog", true);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(PUSH_THREADS, refspecs.size())),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "git push");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        try {
+            Map<String, ByteArrayOutputStream> logs = new LinkedHashMap<String, ByteArrayOutputStream>();
+            Map<String, Future<List<String>>> pushes = new LinkedHashMap<String, Future<List<String>>>();
+            for (Map.Entry<String, List<String>> entry : refspecs.entrySet()) {
+                final String name = entry.getKey();
+                final RemoteConfig remote = remotes.get(name);
+                final List<String> specs = entry.getValue();
+                final ByteArrayOutputStream log = new ByteArrayOutputStream();
+                logs.put(name, log);
+                pushes.put(name, executor.submit(new Callable<List<String>>() {
+                    public List<String> call() throws Exception {
+                        final Thread thread = Thread.currentThread();
+                        final AtomicBoolean timedOut = new AtomicBoolean();
+                        TimerTask interrupt = new TimerTask() {
+                            @Override
+                            public void run() {
+                                // the launcher kills git when interrupted
+                                timedOut.set(true);
+                                thread.interrupt();
+                            }
+                        };
+                        watchdog.schedule(interrupt, timeout);
                         try {
-                            branchResult = workingDirectory.act(new FileCallable<Boolean>() {
-                                private static final long serialVersionUID = 1L;
-
-                                public Boolean invoke(File workspace,
-                                                      VirtualChannel channel) throws IOException {
-
-                                    IGitAPI git = new GitAPI(gitExe, new FilePath(workspace),
-                                        listener, environment);
-
-                                    RemoteConfig remote = gitSCM.getRepositoryByName(targetRepo);
-
-                                    if (remote == null) {
-                                        listener.getLogger()
-                                            .println("No repository found for target repo name " + targetRepo);
-                                        return false;
-                                    }
-
-                                    listener.getLogger().println("Pushing HEAD to branch " + branchName + " at repo "
-                                        + targetRepo);
-                                    git.push(remote, "HEAD:" + branchName);
-
-                                    return true;
-                                }
-                            });
-                        } catch (Throwable e) {
-                            listener.error("Failed to push branch " + branchName + " to "
-                                + targetRepo + ": " + e.getMessage());
-                            build.setResult(Result.FAILURE);
-                            branchResult = false;
+                            IGitAPI git = new GitAPI(gitExe, new FilePath(workspace), new StreamTaskListener(log),
+                                environment);
+                            return git.push(remote, specs);
+                        } catch (GitException e) {
+                            if (timedOut.get()) {
+                                throw new GitException("Timed out after " + PUSH_TIMEOUT_MINUTES
+                                    + " minutes pushing to " + name, e);
+                            }
+                            throw e;
+                        } finally {
+                            interrupt.cancel();
+                            Thread.interrupted();
                         }
                     }
+                }));
+            }
 
-                    if (!branchResult) {
-                        allBranchesResult = false;
+            List<String> failures = new ArrayList<String>();
+            for (Map.Entry<String, Future<List<String>>> push : pushes.entrySet()) {
+                String name = push.getKey();
+                listener.getLogger().println("Pushing " + refspecs.get(name).size() + " ref(s) to " + name);
+                String failure = null;
+                try {
+                    List<String> rejected = push.getValue().get();
+                    if (!rejected.isEmpty()) {
+                        failure = name + " rejected " + rejected;
                     }
+                } catch (ExecutionException e) {
+                    failure = e.getCause().getMessage();
+                } catch (InterruptedException e) {
+                    throw new IOException2("Interrupted while pushing to " + name, e);
                 }
-                if (!allBranchesResult) {
-                    pushResult = false;
+                listener.getLogger().print(logs.get(name).toString());
+                if (failure != null) {
+                    failures.add(failure);
                 }
-
             }
+            return failures;
+        } finally {
+            executor.shutdownNow();
+            watchdog.cancel();
+        }
+    }
 
-            return pushResult;
+    private static void addRefSpec(Map<String, List<String>> refspecs, Map<String, RemoteConfig> remotes,
+                                   RemoteConfig remote, String refspec) {
+        List<String> specs = refspecs.get(remote.getName());
+        if (specs == null) {
+            specs = new ArrayList<String>();
+            refspecs.put(remote.getName(), specs);
+            remotes.put(remote.getName(), remote);
         }
+        specs.add(refspec);
     }
 
     /**
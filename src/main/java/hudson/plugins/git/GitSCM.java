@@ -45,6 +45,7 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.plugins.git.browser.GitRepositoryBrowser;
+import hudson.plugins.git.converter.BuildDataConverter;
 import hudson.plugins.git.converter.ObjectIdConverter;
 import hudson.plugins.git.converter.RemoteConfigConverter;
 import hudson.plugins.git.opt.PreBuildMergeOptions;
@@ -52,6 +53,9 @@ import hudson.plugins.git.util.Build;
 import hudson.plugins.git.util.BuildChooser;
 import hudson.plugins.git.util.BuildChooserDescriptor;
 import hudson.plugins.git.util.BuildData;
+import hudson.plugins.git.util.BuildDataIndex;
+import hudson.plugins.git.util.BuildDataRetention;
+import hudson.plugins.git.util.BuildMarker;
 import hudson.plugins.git.util.DefaultBuildChooser;
 import hudson.plugins.git.util.GitConstants;
 import hudson.plugins.git.util.GitUtils;
@@ -90,6 +94,7 @@ import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -597,20 +602,13 @@ public class GitSCM extends SCM implements Serializable {
         //TODO find way to delete global variables and don't break master-slave serialization
         final int buildNumber = build.getNumber();
         final String gitExe = getGitExe(build.getBuiltOn(), listener);
-        final String internalTagName = new StringBuilder()
-            .append(GitConstants.INTERNAL_TAG_NAME_PREFIX)
-            .append(GitConstants.HYPHEN_SYMBOL)
-            .append(build.getProject().getName())
-            .append(GitConstants.HYPHEN_SYMBOL)
-            .append(build.getNumber())
-            .toString();
-
-        final String internalTagComment = new StringBuilder()
-            .append(GitConstants.INTERNAL_TAG_COMMENT_PREFIX)
-            .append(build.getNumber()).toString();
-
+        final BuildMarker marker = new BuildMarker(build.getProject().getName(), build.getNumber(),
+            ((DescriptorImpl) getDescriptor()).isBuildMarkerNotes());
 
         final BuildData buildData = getBuildData(build.getPreviousBuild(), true);
+        final boolean fastClean = ((DescriptorImpl) getDescriptor()).isFastClean();
+        final String sharedRoot = getSharedRepositoryRoot(build.getBuiltOn());
+        final BuildDataRetention retention = getBuildDataRetention(listener);
 
         if (buildData.lastBuild != null) {
             listener.getLogger().println("Last Built Revision: " + buildData.lastBuild.revision);
@@ -632,6 +630,7 @@ public class GitSCM extends SCM implements Serializable {
         final String singleBranch = GitUtils.getSingleBranch(build, getRepositories(), getBranches());
         final String paramLocalBranch = getParamLocalBranch(build);
         Revision tempParentLastBuiltRev = null;
+        FilePath parentWorkspace = null;
 
         if (build instanceof MatrixRun) {
             MatrixBuild parentBuild = ((MatrixRun) build).getParentBuild();
@@ -640,6 +639,7 @@ public class GitSCM extends SCM implements Serializable {
                 if (parentBuildData != null) {
                     tempParentLastBuiltRev = parentBuildData.getLastBuiltRevision();
                 }
+                parentWorkspace = parentBuild.getWorkspace();
             }
         }
 
@@ -664,10 +664,21 @@ public class GitSCM extends SCM implements Serializable {
                 workingDirectory.mkdirs();
             }
 
+            // Configurations fetch the revision of the parent from its workspace when they run on the same node
+            String parentRepository = null;
+            if (parentLastBuiltRev != null && parentWorkspace != null
+                && parentWorkspace.getChannel() == workspace.getChannel()) {
+                FilePath parentDirectory = workingDirectory(parentWorkspace);
+                if (StringUtils.isNotEmpty(entry.getKey()) && !entry.getKey().equals(".")) {
+                    parentDirectory = parentDirectory.child(entry.getKey());
+                }
+                parentRepository = parentDirectory.getRemote();
+            }
+
             List<RemoteConfig> repos = entry.getValue();
             final Revision revToBuild = gerRevisionToBuild(listener, workingDirectory, gitExe, buildData, environment,
                 singleBranch, repos,
-                parentLastBuiltRev, rpa);
+                parentLastBuiltRev, rpa, fastClean, sharedRoot, parentRepository, build.getProject().getFullName());
 
             if (revToBuild == null) {
                 // getBuildCandidates should make the last item the last build, so a re-build
@@ -683,18 +694,19 @@ public class GitSCM extends SCM implements Serializable {
 
             if (mergeOptions.doMerge() && !revToBuild.containsBranchName(mergeOptions.getRemoteBranchName())) {
                 buildConfig = getMergedBuildConfig(listener, workingDirectory, buildNumber, gitExe, buildData,
-                    environment, paramLocalBranch, revToBuild, internalTagName, internalTagComment);
+                    environment, paramLocalBranch, revToBuild, marker, retention, fastClean);
                 result = result && changeLogResult(buildConfig.getChangeLog(), changelogFile);
                 continue;
             }
 
             // No merge
             buildConfig = getBuildConfig(listener, workingDirectory, buildNumber, gitExe, buildData, environment,
-                paramLocalBranch, repos, revToBuild, internalTagName, internalTagComment);
+                paramLocalBranch, repos, revToBuild, marker, retention, fastClean);
             result = result && changeLogResult(buildConfig.getChangeLog(), changelogFile);
         }
         if (null != buildConfig) {
             build.addAction(buildConfig.getBuildData());
+            BuildDataIndex.record(build);
         }
         if (!hasChanges) {
            return changeLogResult(null, changelogFile);
@@ -714,8 +726,9 @@ public class GitSCM extends SCM implements Serializable {
      * @param paramLocalBranch paramLocalBranch.
      * @param paramRepos paramRepos.
      * @param revToBuild revToBuild.
-     * @param internalTagName internalTagName
-     * @param internalTagComment internalTagComment.
+     * @param marker marker of the commit being built.
+     * @param retention retention policy of the build data.
+     * @param fastClean use the fast clean.
      * @return buildConfig with change log and build data.
      * @throws IOException          IOException.
      * @throws InterruptedException InterruptedException.
@@ -725,8 +738,8 @@ public class GitSCM extends SCM implements Serializable {
                                        final int buildNumber, final String gitExe, final BuildData buildData,
                                        final EnvVars environment,
                                        final String paramLocalBranch, final List<RemoteConfig> paramRepos,
-                                       final Revision revToBuild, final String internalTagName,
-                                       final String internalTagComment)
+                                       final Revision revToBuild, final BuildMarker marker,
+                                       final BuildDataRetention retention, final boolean fastClean)
         throws IOException, InterruptedException {
         return workingDirectory.act(new FileCallable<BuildConfig>() {
             private static final long serialVersionUID = 1L;
@@ -739,8 +752,7 @@ public class GitSCM extends SCM implements Serializable {
                 listener.getLogger().println("Checking out " + revToBuild);
 
                 if (getClean()) {
-                    listener.getLogger().println("Cleaning workspace");
-                    git.clean();
+                    cleanWorkspace(git, listener, fastClean, false);
                 }
 
                 git.checkoutBranch(paramLocalBranch, revToBuild.getSha1().name());
@@ -777,11 +789,12 @@ public class GitSCM extends SCM implements Serializable {
                     combinator.createSubmoduleCombinations();
                 }
 
-                createInternalTag(git, internalTagName, internalTagComment);
+                createInternalTag(git, marker);
 
                 String changeLog = computeChangeLog(git, revToBuild, listener, buildData);
 
                 buildData.saveBuild(new Build(revToBuild, buildNumber, null));
+                pruneBuildData(git, listener, buildData, retention, buildNumber);
 
                 // Fetch the diffs into the changelog file
                 return new BuildConfig(changeLog, buildData);
@@ -800,8 +813,9 @@ public class GitSCM extends SCM implements Serializable {
      * @param environment environment.
      * @param paramLocalBranch paramLocalBranch.
      * @param revToBuild revToBuild.
-     * @param internalTagName internalTagName
-     * @param internalTagComment internalTagComment.
+     * @param marker marker of the commit being built.
+     * @param retention retention policy of the build data.
+     * @param fastClean use the fast clean.
      * @return buildConfig with change log and build data.
      * @throws IOException          IOException.
      * @throws InterruptedException InterruptedException.
@@ -811,7 +825,8 @@ public class GitSCM extends SCM implements Serializable {
                                              final int buildNumber, final String gitExe, final BuildData buildData,
                                              final EnvVars environment,
                                              final String paramLocalBranch, final Revision revToBuild,
-                                             final String internalTagName, final String internalTagComment)
+                                             final BuildMarker marker, final BuildDataRetention retention,
+                                             final boolean fastClean)
         throws IOException, InterruptedException {
         return workingDirectory.act(new FileCallable<BuildConfig>() {
             private static final long serialVersionUID = 1L;
@@ -830,12 +845,49 @@ public class GitSCM extends SCM implements Serializable {
 
                 // checkout origin/blah
                 ObjectId target = git.revParse(mergeOptions.getRemoteBranchName());
+                ObjectId candidate = revToBuild.getSha1();
+                File gitDir = new File(localWorkspace, Constants.DOT_GIT);
+
+                // Decide the merge in memory first, the work tree is only written once with the result. Merges
+                // which already failed onto this target are rejected without being attempted again.
+                boolean merged = false;
+                if (MergeConflictCache.isConflict(gitDir, candidate, target)) {
+                    listener.getLogger().println(candidate.name() + " is known not to merge cleanly onto "
+                        + target.name());
+                } else {
+                    ObjectId merge = null;
+                    try {
+                        merge = git.mergeInMemory(target, candidate);
+                    } catch (GitException e) {
+                        listener.getLogger().println("Could not merge in memory, falling back to git merge: "
+                            + e.getMessage());
+                    }
+                    if (merge != null) {
+                        git.checkoutBranch(paramLocalBranch, merge.name());
+                        merged = true;
+                    } else {
+                        // the in-memory merge does not detect renames, let git merge have the final word
+                        git.checkoutBranch(paramLocalBranch, target.name());
+                        try {
+                            git.merge(candidate.name());
+                            merged = true;
+                        } catch (GitException ex) {
+                            // only content conflicts are final, not a locked index or an I/O error
+                            if (git.hasUnmergedPaths()) {
+                                MergeConflictCache.recordConflict(gitDir, candidate, target);
+                            } else {
+                                listener.getLogger().println("git merge failed: " + ex.getMessage());
+                            }
+                            try {
+                                git.abortMerge();
+                            } catch (GitException e) {
+                                listener.getLogger().println("Could not abort the merge: " + e.getMessage());
+                            }
+                        }
+                    }
+                }
 
-                git.checkoutBranch(paramLocalBranch, target.name());
-
-                try {
-                    git.merge(revToBuild.getSha1().name());
-                } catch (Exception ex) {
+                if (!merged) {
                     listener
                         .getLogger()
                         .println(
@@ -847,9 +899,10 @@ public class GitSCM extends SCM implements Serializable {
                     // branch.
                     git.checkoutBranch(paramLocalBranch, revToBuild.getSha1().name());
 
-                    createInternalTag(git, internalTagName, internalTagComment);
+                    createInternalTag(git, marker);
 
                     buildData.saveBuild(new Build(revToBuild, buildNumber, Result.FAILURE));
+                    pruneBuildData(git, listener, buildData, retention, buildNumber);
                     return new BuildConfig(null, buildData);
                 }
 
@@ -860,7 +913,7 @@ public class GitSCM extends SCM implements Serializable {
                     git.submoduleUpdate(recursiveSubmodules);
                 }
 
-                createInternalTag(git, internalTagName, internalTagComment);
+                createInternalTag(git, marker);
 
                 String changeLog = computeChangeLog(git, revToBuild, listener, buildData);
 
@@ -868,12 +921,9 @@ public class GitSCM extends SCM implements Serializable {
                 buildData.saveBuild(build);
                 GitUtils gu = new GitUtils(listener, git);
                 build.mergeRevision = gu.getRevisionForSHA1(target);
+                pruneBuildData(git, listener, buildData, retention, buildNumber);
                 if (getClean()) {
-                    listener.getLogger().println("Cleaning workspace");
-                    git.clean();
-                    if (git.hasGitModules()) {
-                        git.submoduleClean(recursiveSubmodules);
-                    }
+                    cleanWorkspace(git, listener, fastClean, true);
                 }
 
                 // Fetch the diffs into the changelog file
@@ -882,10 +932,84 @@ public class GitSCM extends SCM implements Serializable {
         });
     }
 
+    /**
+     * Removes untracked and ignored files from the workspace.
+     *
+     * @param git git.
+     * @param listener listener.
+     * @param fast use {@link IGitAPI#fastClean()} rather than the full clean.
+     * @param submodules also clean the submodules.
+     */
+    private void cleanWorkspace(IGitAPI git, TaskListener listener, boolean fast, boolean submodules) {
+        listener.getLogger().println(fast ? "Cleaning workspace (fast)" : "Cleaning workspace");
+        if (fast) {
+            git.fastClean();
+        } else {
+            git.clean();
+        }
+        if (submodules && git.hasGitModules()) {
+            if (fast) {
+                git.submoduleFastClean(recursiveSubmodules);
+            } else {
+                git.submoduleClean(recursiveSubmodules);
+            }
+        }
+    }
+
+    /**
+     * Returns the retention policy of the build data for this job. Branches deleted remotely can only be told apart
+     * when the remote branches of the single working directory are pruned on every fetch, so dropping them is left
+     * out otherwise.
+     *
+     * @param listener listener.
+     * @return retention policy.
+     */
+    private BuildDataRetention getBuildDataRetention(TaskListener listener) {
+        BuildDataRetention retention = ((DescriptorImpl) getDescriptor()).getBuildDataRetention();
+        if (!retention.isPruneDeletedBranches()) {
+            return retention;
+        }
+        String reason = null;
+        if (!pruneBranches) {
+            reason = "remote branches are not pruned by this job";
+        } else if (getRemoteConfigMap(getRepositories()).size() > 1) {
+            reason = "the repositories are checked out into several directories";
+        }
+        if (reason == null) {
+            return retention;
+        }
+        listener.getLogger().println("Keeping the history of deleted branches as " + reason);
+        return retention.withoutDeletedBranches();
+    }
+
+    /**
+     * Drops the branches the retention policy considers stale from the build data.
+     *
+     * @param git git.
+     * @param listener listener.
+     * @param buildData build data of the current build.
+     * @param retention retention policy.
+     * @param buildNumber number of the current build.
+     * @throws IOException if the remote branches cannot be listed.
+     */
+    private static void pruneBuildData(IGitAPI git, TaskListener listener, BuildData buildData,
+                                       BuildDataRetention retention, int buildNumber) throws IOException {
+        if (!retention.isEnabled()) {
+            return;
+        }
+        int pruned = buildData.prune(new GitUtils(listener, git).getAllBranchRevisions(), retention, buildNumber);
+        if (pruned > 0) {
+            listener.getLogger().println("Dropped " + pruned + " stale branches from the build data");
+        }
+    }
+
     private Revision gerRevisionToBuild(final BuildListener listener, FilePath workingDirectory, final String gitExe,
                                         final BuildData buildData, final EnvVars environment, final String singleBranch,
                                         final List<RemoteConfig> paramRepos, final Revision parentLastBuiltRev,
-                                        final RevisionParameterAction rpa) throws IOException, InterruptedException {
+                                        final RevisionParameterAction rpa, final boolean fastClean,
+                                        final String sharedRoot, final String parentRepository,
+                                        final String jobName)
+        throws IOException, InterruptedException {
         return workingDirectory.act(new FileCallable<Revision>() {
             private static final long serialVersionUID = 1L;
 
@@ -905,7 +1029,32 @@ public class GitSCM extends SCM implements Serializable {
                     }
                 }
 
-                if (git.hasGitRepo()) {
+                boolean seeded = false;
+                if (parentLastBuiltRev != null && (parentRepository != null || sharedRoot != null)) {
+                    boolean created = !git.hasGitRepo();
+                    seeded = seedFromParent(git, localWorkspace, parentRepository, sharedRoot, paramRepos,
+                        parentLastBuiltRev, jobName, listener);
+                    // Seeding only replaces the fetch or the clone, what follows them still applies
+                    if (seeded && !created && pruneBranches) {
+                        listener.getLogger().println("Pruning obsolete local branches");
+                        for (RemoteConfig remoteRepository : paramRepos) {
+                            git.prune(remoteRepository);
+                        }
+                    }
+                    if (seeded && created && getClean()) {
+                        cleanWorkspace(git, listener, fastClean, true);
+                    }
+                }
+
+                if (seeded) {
+                    listener.getLogger().println("Using the revision of the parent build without fetching the remotes");
+                } else if (sharedRoot != null) {
+                    if (!fetchThroughSharedRepositories(git, localWorkspace, sharedRoot, gitExe, paramRepos, jobName,
+                        listener, environment)) {
+                        listener.error("Could not fetch from any repository");
+                        throw new GitException("Could not fetch from any repository");
+                    }
+                } else if (git.hasGitRepo()) {
                     // It's an update
 
                     // Do we want to prune first?
@@ -977,11 +1126,7 @@ public class GitSCM extends SCM implements Serializable {
                     }
 
                     if (getClean()) {
-                        listener.getLogger().println("Cleaning workspace");
-                        git.clean();
-                        if (git.hasGitModules()) {
-                            git.submoduleClean(recursiveSubmodules);
-                        }
+                        cleanWorkspace(git, listener, fastClean, true);
                     }
                 }
 
@@ -1030,6 +1175,13 @@ public class GitSCM extends SCM implements Serializable {
         private String globalConfigName;
         private String globalConfigEmail;
         private boolean createAccountBaseOnCommitterEmail;
+        private boolean pruneDeletedBranchData;
+        private int buildDataMaxAgeDays;
+        private int buildDataMaxAgeBuilds;
+        private boolean buildMarkerNotes;
+        private boolean fastClean;
+        private boolean sharedNodeRepository;
+        private boolean pollMergeCheck;
 
         public DescriptorImpl() {
             super(GitSCM.class, GitRepositoryBrowser.class);
@@ -1049,6 +1201,34 @@ public class GitSCM extends SCM implements Serializable {
             this.createAccountBaseOnCommitterEmail = createAccountBaseOnCommitterEmail;
         }
 
+        public void setPruneDeletedBranchData(boolean pruneDeletedBranchData) {
+            this.pruneDeletedBranchData = pruneDeletedBranchData;
+        }
+
+        public void setBuildDataMaxAgeDays(int buildDataMaxAgeDays) {
+            this.buildDataMaxAgeDays = buildDataMaxAgeDays;
+        }
+
+        public void setBuildDataMaxAgeBuilds(int buildDataMaxAgeBuilds) {
+            this.buildDataMaxAgeBuilds = buildDataMaxAgeBuilds;
+        }
+
+        public void setBuildMarkerNotes(boolean buildMarkerNotes) {
+            this.buildMarkerNotes = buildMarkerNotes;
+        }
+
+        public void setFastClean(boolean fastClean) {
+            this.fastClean = fastClean;
+        }
+
+        public void setSharedNodeRepository(boolean sharedNodeRepository) {
+            this.sharedNodeRepository = sharedNodeRepository;
+        }
+
+        public void setPollMergeCheck(boolean pollMergeCheck) {
+            this.pollMergeCheck = pollMergeCheck;
+        }
+
         /**
          * Registering legacy converters and aliases for backward compatibility with org.spearce.jgit library
          */
@@ -1060,6 +1240,8 @@ public class GitSCM extends SCM implements Serializable {
             Items.XSTREAM.registerConverter(
                 new RemoteConfigConverter(Items.XSTREAM.getMapper(), Items.XSTREAM.getReflectionProvider()));
             Run.XSTREAM.registerConverter(new ObjectIdConverter());
+            Run.XSTREAM.registerConverter(
+                new BuildDataConverter(Run.XSTREAM.getMapper(), Run.XSTREAM.getReflectionProvider()));
         }
 
         public String getDisplayName() {
@@ -1116,6 +1298,84 @@ public class GitSCM extends SCM implements Serializable {
             return createAccountBaseOnCommitterEmail;
         }
 
+        /**
+         * Returns true if branches which no longer exist remotely are dropped from the build data.
+         *
+         * @return true if branches which no longer exist remotely are dropped from the build data.
+         */
+        public boolean isPruneDeletedBranchData() {
+            return pruneDeletedBranchData;
+        }
+
+        /**
+         * Returns the number of days after which a branch which has not been built is dropped from the build data.
+         *
+         * @return number of days, 0 if disabled.
+         */
+        public int getBuildDataMaxAgeDays() {
+            return buildDataMaxAgeDays;
+        }
+
+        /**
+         * Returns the number of builds after which a branch which has not been built is dropped from the build data.
+         *
+         * @return number of builds, 0 if disabled.
+         */
+        public int getBuildDataMaxAgeBuilds() {
+            return buildDataMaxAgeBuilds;
+        }
+
+        /**
+         * Returns the retention policy of the branch history kept in the build data.
+         *
+         * @return retention policy.
+         */
+        public BuildDataRetention getBuildDataRetention() {
+            return new BuildDataRetention(pruneDeletedBranchData, buildDataMaxAgeDays, buildDataMaxAgeBuilds);
+        }
+
+        /**
+         * Returns true if builds mark the commit they built with a line in the refs/notes/hudson notes instead of
+         * an internal tag each.
+         *
+         * @return true if build markers are recorded as git notes.
+         */
+        public boolean isBuildMarkerNotes() {
+            return buildMarkerNotes;
+        }
+
+        /**
+         * Returns true if "Clean after checkout" only removes what the index and the previous clean report as
+         * untracked, instead of walking the whole work tree.
+         *
+         * @return true if the fast clean is used.
+         */
+        public boolean isFastClean() {
+            return fastClean;
+        }
+
+        /**
+         * Returns true if the workspaces of a node fetch through one shared repository per remote, borrowing its
+         * objects, instead of each fetching the remote on its own.
+         *
+         * @return true if workspaces use shared node repositories.
+         * @see SharedNodeRepository
+         */
+        public boolean isSharedNodeRepository() {
+            return sharedNodeRepository;
+        }
+
+        /**
+         * Returns true if polling drops the candidates of jobs with a pre-build merge which conflict with the merge
+         * target, instead of triggering a build which is bound to fail.
+         *
+         * @return true if mergeability is checked when polling.
+         * @see MergeConflictCache
+         */
+        public boolean isPollMergeCheck() {
+            return pollMergeCheck;
+        }
+
         /**
          * Old configuration of git executable - exposed so that we can
          * migrate this setting to GitTool without deprecation warnings.
@@ -1350,6 +1610,10 @@ public class GitSCM extends SCM implements Serializable {
     /**
      * Look back as far as needed to find a valid BuildData.  BuildData
      * may not be recorded if an exception occurs in the plugin logic.
+     * Once found, the build holding it is remembered in {@link BuildDataIndex}
+     * so that later lookups do not load the builds in between.
+     * <p/>
+     * The clone is copy-on-write and is persisted as a delta against the build the data was found on.
      *
      * @param build build.
      * @param clone is clone.
@@ -1357,6 +1621,11 @@ public class GitSCM extends SCM implements Serializable {
      */
     public BuildData getBuildData(Run build, boolean clone) {
         BuildData buildData = null;
+        Run start = build;
+        Run indexed = build == null ? null : BuildDataIndex.lookup(build);
+        if (indexed != null) {
+            build = indexed;
+        }
         while (build != null) {
             buildData = build.getAction(BuildData.class);
             if (buildData != null) {
@@ -1368,9 +1637,13 @@ public class GitSCM extends SCM implements Serializable {
         if (buildData == null) {
             return clone ? new BuildData() : null;
         }
+        if (indexed == null && BuildDataIndex.isLatest(start)) {
+            BuildDataIndex.record(build);
+        }
 
+        buildData.resolve(build);
         if (clone) {
-            return buildData.clone();
+            return buildData.deltaCopy(build.getNumber());
         } else {
             return buildData;
         }
@@ -1409,6 +1682,24 @@ public class GitSCM extends SCM implements Serializable {
         return workspace.child(relativeTargetDir);
     }
 
+    /**
+     * Returns the directories of the git repositories this SCM checks out into the given workspace.
+     *
+     * @param workspace workspace.
+     * @return repository directories.
+     */
+    List<FilePath> getRepositoryDirectories(FilePath workspace) {
+        List<FilePath> directories = new ArrayList<FilePath>();
+        for (String relativeDir : getRemoteConfigMap(getRepositories()).keySet()) {
+            FilePath directory = workingDirectory(workspace);
+            if (StringUtils.isNotEmpty(relativeDir) && !relativeDir.equals(".")) {
+                directory = directory.child(relativeDir);
+            }
+            directories.add(directory);
+        }
+        return directories;
+    }
+
     @Override
     protected PollingResult compareRemoteRevisionWith(AbstractProject<?, ?> project, Launcher launcher,
                                                       FilePath workspace, final TaskListener listener,
@@ -1464,6 +1755,8 @@ public class GitSCM extends SCM implements Serializable {
         final EnvVars environment = GitUtils.getPollEnvironment(project, workspace, launcher, listener);
         final List<RemoteConfig> paramRepos = getParamExpandedRepos(lastBuild);
         final String singleBranch = GitUtils.getSingleBranch(lastBuild, getRepositories(), getBranches());
+        final String sharedRoot = getSharedRepositoryRoot(project.getLastBuiltOn());
+        final boolean mergeCheck = ((DescriptorImpl) getDescriptor()).isPollMergeCheck() && mergeOptions.doMerge();
 
         boolean pollChangesResult = workingDirectory.act(new FileCallable<Boolean>() {
             private static final long serialVersionUID = 1L;
@@ -1481,15 +1774,25 @@ public class GitSCM extends SCM implements Serializable {
                     IGitAPI git = new GitAPI(gitExe, workspace, listener, environment);
                     if (git.hasGitRepo()) {
                         // Repo is there - do a fetch
-                        listener.getLogger().println("Fetching changes from the remote Git repositories");
-
-                        for (RemoteConfig remoteRepository : entry.getValue()) {
-                            fetchFrom(git, listener, remoteRepository);
+                        if (sharedRoot != null) {
+                            fetchThroughSharedRepositories(git, new File(workspace.getRemote()), sharedRoot, gitExe,
+                                entry.getValue(), listener, environment);
+                        } else {
+                            listener.getLogger().println("Fetching changes from the remote Git repositories");
+
+                            for (RemoteConfig remoteRepository : entry.getValue()) {
+                                fetchFrom(git, listener, remoteRepository);
+                            }
                         }
 
                         Collection<Revision> origCanditates = buildChooser.getCandidateRevisions(
                             true, singleBranch, git, listener, buildData);
 
+                        if (mergeCheck) {
+                            origCanditates = dropConflictingCandidates(git, new File(workspace.getRemote()),
+                                origCanditates, listener);
+                        }
+
                         for (Revision c : origCanditates) {
                             if (!isRevExcluded(git, c, listener)) {
                                 canditates.add(c);
@@ -1508,6 +1811,58 @@ public class GitSCM extends SCM implements Serializable {
         return pollChangesResult ? PollingResult.SIGNIFICANT : PollingResult.NO_CHANGES;
     }
 
+    /**
+     * Drops the candidates which conflict with the merge target, so that they do not trigger builds which are bound
+     * to fail. A candidate is checked in memory, without writing any object, unless a previous check or build already
+     * found it conflicting. As the in-memory merge does not detect renames, only conflicts on paths present on both
+     * sides drop a candidate; those are recorded in the {@link MergeConflictCache} so that later polls skip the merge.
+     * Candidates of the target branch itself are not merged by the build and are always kept.
+     *
+     * @param git git api of the workspace.
+     * @param workspace workspace directory.
+     * @param candidates candidate revisions.
+     * @param listener listener.
+     * @return the candidates not known to conflict.
+     */
+    private Collection<Revision> dropConflictingCandidates(IGitAPI git, File workspace,
+                                                           Collection<Revision> candidates, TaskListener listener) {
+        String remoteBranchName = mergeOptions.getRemoteBranchName();
+        ObjectId target;
+        try {
+            target = git.revParse(remoteBranchName);
+        } catch (GitException e) {
+            // no target yet, the build reports it
+            return candidates;
+        }
+
+        File gitDir = new File(workspace, Constants.DOT_GIT);
+        List<Revision> mergeable = new ArrayList<Revision>(candidates.size());
+        for (Revision candidate : candidates) {
+            if (candidate.containsBranchName(remoteBranchName)) {
+                mergeable.add(candidate);
+                continue;
+            }
+            boolean conflict = MergeConflictCache.isConflict(gitDir, candidate.getSha1(), target);
+            if (!conflict) {
+                try {
+                    conflict = !git.canMergeInMemory(target, candidate.getSha1());
+                } catch (GitException e) {
+                    // undecided, let the build try git merge
+                }
+                if (conflict) {
+                    MergeConflictCache.recordConflict(gitDir, candidate.getSha1(), target);
+                }
+            }
+            if (conflict) {
+                listener.getLogger().println("[poll] Ignoring " + candidate.getSha1String()
+                    + " as it does not merge cleanly onto " + remoteBranchName);
+            } else {
+                mergeable.add(candidate);
+            }
+        }
+        return mergeable;
+    }
+
     private RemoteConfig newRemoteConfig(String name, String refUrl, RefSpec refSpec, String relativeTargetDir) {
         try {
             Config repoConfig = new Config();
@@ -1601,6 +1956,131 @@ public class GitSCM extends SCM implements Serializable {
         return false;
     }
 
+    /**
+     * Fetches the remotes into the shared repositories of the node, and the workspace from those.
+     *
+     * @param git git of the workspace.
+     * @param workspace the workspace.
+     * @param sharedRoot directory of the shared repositories on the node.
+     * @param gitExe git executable.
+     * @param remotes remotes to fetch.
+     * @param jobName full name of the job the workspace belongs to.
+     * @param listener listener.
+     * @param environment environment.
+     * @return true if at least one remote was fetched.
+     * @throws IOException if a shared repository could not be used.
+     * @see SharedNodeRepository
+     */
+    private boolean fetchThroughSharedRepositories(IGitAPI git, File workspace, String sharedRoot, String gitExe,
+                                                   List<RemoteConfig> remotes, String jobName,
+                                                   TaskListener listener, EnvVars environment) throws IOException {
+        listener.getLogger().println("Fetching changes through the shared repositories of the node");
+        boolean fetched = false;
+        for (RemoteConfig remote : remotes) {
+            URIish uri = remote.getURIs().get(0);
+            SharedNodeRepository shared = SharedNodeRepository.get(new File(sharedRoot), uri);
+            try {
+                shared.fetch(gitExe, uri, listener, environment);
+                shared.attach(git, workspace, remote, jobName);
+                fetched = true;
+                // The shared repository drops the deleted branches, the workspace keeps them unless pruned as well
+                if (pruneBranches) {
+                    listener.getLogger().println("Pruning obsolete local branches");
+                    git.prune(remote);
+                }
+            } catch (GitException ex) {
+                listener.error("Problem fetching from " + remote.getName() + " through " + shared.getDirectory()
+                    + " - could be unavailable. Continuing anyway");
+                listener.error(" (Underlying report) : " + ex.getMessage());
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * Fetches the revision the parent matrix build checked out without going to the remotes: from the workspace of the
+     * parent if it is on the same node, otherwise from the shared repositories of the node as they are.
+     *
+     * @param git git of the workspace.
+     * @param workspace the workspace.
+     * @param parentRepository repository of the parent build on this node, or null.
+     * @param sharedRoot directory of the shared repositories on the node, or null.
+     * @param remotes remotes of the workspace.
+     * @param revision revision of the parent build.
+     * @param jobName full name of the job the workspace belongs to.
+     * @param listener listener.
+     * @return true if the revision is now in the workspace repository, false if the remotes must be fetched.
+     * @throws IOException if a shared repository could not be used.
+     */
+    private boolean seedFromParent(IGitAPI git, File workspace, String parentRepository, String sharedRoot,
+                                   List<RemoteConfig> remotes, Revision revision, String jobName,
+                                   TaskListener listener)
+        throws IOException {
+        try {
+            if (parentRepository != null) {
+                listener.getLogger().println("Fetching " + revision.getSha1String()
+                    + " from the workspace of the parent build " + parentRepository);
+                if (!git.hasGitRepo()) {
+                    git.init();
+                    // Configured like a clone, so that later fetches of the remotes update their branches
+                    for (RemoteConfig remote : remotes) {
+                        git.setRemote(remote);
+                    }
+                }
+                for (String refspec : getParentRefSpecs(revision)) {
+                    git.fetch(parentRepository, refspec);
+                }
+            } else {
+                listener.getLogger().println("Fetching " + revision.getSha1String()
+                    + " from the shared repositories of the node");
+                for (RemoteConfig remote : remotes) {
+                    SharedNodeRepository.get(new File(sharedRoot), remote.getURIs().get(0))
+                        .attach(git, workspace, remote, jobName);
+                }
+            }
+            if (git.isCommitInRepo(revision.getSha1String())) {
+                return true;
+            }
+            listener.getLogger().println(revision.getSha1String() + " not found locally, fetching the remotes");
+        } catch (GitException ex) {
+            listener.error("Could not fetch the revision of the parent build locally, fetching the remotes");
+            listener.error(" (Underlying report) : " + ex.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the refspecs fetching the remote branches of the revision from the workspace of the parent build, or
+     * all of its remote branches if the revision has none.
+     */
+    private static List<String> getParentRefSpecs(Revision revision) {
+        List<String> refspecs = new ArrayList<String>();
+        for (Branch branch : revision.getBranches()) {
+            if (branch.getName().indexOf('/') > 0) {
+                String ref = Constants.R_REMOTES + branch.getName();
+                refspecs.add("+" + ref + ":" + ref);
+            }
+        }
+        if (refspecs.isEmpty()) {
+            refspecs.add("+" + Constants.R_REMOTES + "*:" + Constants.R_REMOTES + "*");
+        }
+        return refspecs;
+    }
+
+    /**
+     * Returns the directory holding the shared repositories on the node, or null if workspaces do not share them.
+     *
+     * @param node node.
+     * @return directory on the node, or null.
+     */
+    private String getSharedRepositoryRoot(Node node) {
+        if (node == null || !((DescriptorImpl) getDescriptor()).isSharedNodeRepository()) {
+            return null;
+        }
+        FilePath root = node.getRootPath();
+        return root == null ? null : root.child(SharedNodeRepository.ROOT).getRemote();
+    }
+
     /**
      * Fetch submodule information from relative to a particular remote repository.
      *
@@ -1612,7 +2092,7 @@ public class GitSCM extends SCM implements Serializable {
      */
     private boolean fetchSubmodulesFrom(IGitAPI git,
                                         File workspace,
-                                        TaskListener listener,
+                                        final TaskListener listener,
                                         RemoteConfig remoteRepository) {
         boolean fetched = true;
 
@@ -1633,10 +2113,11 @@ public class GitSCM extends SCM implements Serializable {
 
             if (hasHead) {
                 List<IndexEntry> submodules = git.getSubmodules("HEAD");
+                SubmoduleTasks tasks = new SubmoduleTasks(listener);
 
-                for (IndexEntry submodule : submodules) {
+                for (final IndexEntry submodule : submodules) {
                     try {
-                        RemoteConfig submoduleRemoteRepository
+                        final RemoteConfig submoduleRemoteRepository
                             = getSubmoduleRepository(git,
                             remoteRepository,
                             submodule.getFile());
@@ -1645,11 +2126,22 @@ public class GitSCM extends SCM implements Serializable {
                         listener.getLogger().println(
                             "Trying to fetch " + submodule.getFile() + " into " + subdir);
 
-                        IGitAPI subGit = new GitAPI(git.getGitExe(),
+                        final IGitAPI subGit = new GitAPI(git.getGitExe(),
                             new FilePath(subdir),
                             listener, git.getEnvironment());
 
-                        subGit.fetch(submoduleRemoteRepository);
+                        tasks.submit("Fetched submodule " + submodule.getFile(), new SubmoduleTasks.Task() {
+                            public void run(SubmoduleTasks tasks) {
+                                try {
+                                    subGit.fetch(submoduleRemoteRepository);
+                                } catch (GitException ex) {
+                                    listener.getLogger().println(
+                                        "Problem fetching from submodule "
+                                            + submodule.getFile()
+                                            + " - could be unavailable. Continuing anyway");
+                                }
+                            }
+                        });
                     } catch (Exception ex) {
                         listener.getLogger().println(
                             "Problem fetching from submodule "
@@ -1657,6 +2149,7 @@ public class GitSCM extends SCM implements Serializable {
                                 + " - could be unavailable. Continuing anyway");
                     }
                 }
+                tasks.await();
             }
         } catch (GitException ex) {
             ex.printStackTrace(listener.error(
@@ -1678,9 +2171,9 @@ public class GitSCM extends SCM implements Serializable {
      * @param tagName tag name.
      * @param tagComment tag comment.
      */
-    private void createInternalTag(IGitAPI git, String tagName, String tagComment) {
+    private void createInternalTag(IGitAPI git, BuildMarker marker) {
         if (!getSkipTag()) {
-            git.tag(tagName, tagComment);
+            marker.record(git);
         }
     }
 
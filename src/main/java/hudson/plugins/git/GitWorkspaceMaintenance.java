@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.matrix.MatrixProject;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the workspace repositories of {@link GitSCM} jobs packed.
+ * <p/>
+ * Workspaces which are only ever updated by fetches accumulate loose objects and loose refs (remote branches,
+ * internal tags), which makes every fetch, rev-parse and branch listing slower. Periodically, on every node, the
+ * repositories of the jobs which are not building are checked and, above the configured thresholds, get
+ * <tt>git pack-refs</tt>, an incremental <tt>git repack</tt> and <tt>git prune</tt>. The before/after counts and
+ * timings of every repository are written to the log of this task. All the workspaces of a job are covered, including
+ * those of matrix configurations and of concurrent (<tt>@N</tt>) builds, each locked like a build would while it is
+ * maintained.
+ * <p/>
+ * The {@link SharedNodeRepository shared repositories} of the node are packed the same way but never pruned, and
+ * deleted once no workspace borrows their objects anymore.
+ * <p/>
+ * Tuned with system properties prefixed with <tt>hudson.plugins.git.GitWorkspaceMaintenance.</tt>:
+ * <tt>recurrencePeriodHours</tt> (24, 0 disables the task), <tt>looseObjects</tt> (1000) and <tt>looseRefs</tt>
+ * (200).
+ */
+@Extension
+public class GitWorkspaceMaintenance extends AsyncPeriodicWork {
+    private static final String PREFIX = GitWorkspaceMaintenance.class.getName() + ".";
+
+    public static long RECURRENCE_PERIOD_HOURS = Long.getLong(PREFIX + "recurrencePeriodHours", 24);
+    public static int LOOSE_OBJECTS_THRESHOLD = Integer.getInteger(PREFIX + "looseObjects", 1000);
+    public static int LOOSE_REFS_THRESHOLD = Integer.getInteger(PREFIX + "looseRefs", 200);
+
+    private static final Pattern OBJECT_DIR = Pattern.compile("[0-9a-f]{2}");
+
+    public GitWorkspaceMaintenance() {
+        super("Git workspace maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        // AsyncPeriodicWork cannot be switched off, so just make it very rare
+        return RECURRENCE_PERIOD_HOURS > 0 ? TimeUnit.HOURS.toMillis(RECURRENCE_PERIOD_HOURS) : Long.MAX_VALUE / 2;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        if (RECURRENCE_PERIOD_HOURS <= 0) {
+            return;
+        }
+        Hudson hudson = Hudson.getInstance();
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(hudson);
+        nodes.addAll(hudson.getNodes());
+        for (Node node : nodes) {
+            for (TopLevelItem item : hudson.getItems()) {
+                if (item instanceof AbstractProject) {
+                    maintain(node, (AbstractProject<?, ?>) item, listener);
+                }
+            }
+            maintainSharedRepositories(node, listener);
+        }
+    }
+
+    /**
+     * Deletes the shared repositories of the node which no workspace borrows from anymore, and packs the others.
+     * Shared repositories are never pruned, and the workspaces using them are left alone.
+     *
+     * @see SharedNodeRepository
+     */
+    private void maintainSharedRepositories(Node node, TaskListener listener) throws InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null || node.toComputer() == null || node.toComputer().isOffline()) {
+            return;
+        }
+        String gitExe = null;
+        for (TopLevelItem item : Hudson.getInstance().getItems()) {
+            if (item instanceof AbstractProject && ((AbstractProject<?, ?>) item).getScm() instanceof GitSCM) {
+                gitExe = ((GitSCM) ((AbstractProject<?, ?>) item).getScm()).getGitExe(node, listener);
+                break;
+            }
+        }
+        if (gitExe == null) {
+            return;
+        }
+        try {
+            FilePath shared = root.child(SharedNodeRepository.ROOT);
+            if (!shared.isDirectory()) {
+                return;
+            }
+            // Registrations name their job, which only the master can tell still exists
+            Set<String> jobs = new HashSet<String>();
+            for (Job<?, ?> job : Hudson.getInstance().getAllItems(Job.class)) {
+                jobs.add(job.getFullName());
+            }
+            for (String report : shared.act(new SharedRepositoriesCallable(gitExe, listener, jobs))) {
+                listener.getLogger().println("Shared repository on " + nodeName(node) + ": " + report);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to maintain the shared repositories of " + nodeName(node)));
+        }
+    }
+
+    private void maintain(Node node, AbstractProject<?, ?> project, TaskListener listener)
+        throws InterruptedException {
+        Computer computer = node.toComputer();
+        if (!(project.getScm() instanceof GitSCM) || computer == null || computer.isOffline()) {
+            return;
+        }
+        GitSCM scm = (GitSCM) project.getScm();
+        String gitExe = scm.getGitExe(node, listener);
+        List<AbstractProject<?, ?>> jobs = new ArrayList<AbstractProject<?, ?>>();
+        jobs.add(project);
+        if (project instanceof MatrixProject) {
+            jobs.addAll(((MatrixProject) project).getItems());
+        }
+        for (AbstractProject<?, ?> job : jobs) {
+            for (FilePath workspace : getWorkspaces(node, job)) {
+                // Skip busy workspaces rather than waiting for the end of their build. allocate() never blocks, it
+                // leases the next free @N workspace when this one is in use.
+                WorkspaceList.Lease lease = computer.getWorkspaceList().allocate(workspace);
+                if (!lease.path.equals(workspace)) {
+                    lease.release();
+                    listener.getLogger().println(workspace + " of " + job.getFullName() + " is in use, skipped");
+                    continue;
+                }
+                try {
+                    for (FilePath directory : scm.getRepositoryDirectories(workspace)) {
+                        String report = directory.act(new MaintenanceCallable(gitExe, listener, true));
+                        if (report != null) {
+                            listener.getLogger().println(job.getFullName() + " on " + nodeName(node) + ": " + report);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Failed to maintain " + workspace + " of " + job.getFullName()));
+                } catch (GitException e) {
+                    e.printStackTrace(listener.error("Failed to maintain " + workspace + " of " + job.getFullName()));
+                } finally {
+                    lease.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the workspaces of the job on the node: the default one, the one of its last build there when it was
+     * built elsewhere (custom workspaces, matrix configurations), and the <tt>@N</tt> workspaces of concurrent builds
+     * next to them.
+     */
+    private static Set<FilePath> getWorkspaces(Node node, AbstractProject<?, ?> job) throws InterruptedException {
+        Set<FilePath> bases = new LinkedHashSet<FilePath>();
+        if (job instanceof TopLevelItem) {
+            FilePath workspace = node.getWorkspaceFor((TopLevelItem) job);
+            if (workspace != null) {
+                bases.add(workspace);
+            }
+        }
+        AbstractBuild<?, ?> last = job.getLastBuild();
+        if (last != null && last.getBuiltOn() == node && last.getWorkspace() != null) {
+            bases.add(last.getWorkspace());
+        }
+        Set<FilePath> workspaces = new LinkedHashSet<FilePath>();
+        for (FilePath base : bases) {
+            String name = base.getName();
+            int at = name.indexOf('@');
+            Pattern siblings = Pattern.compile(Pattern.quote(at > 0 ? name.substring(0, at) : name) + "(@[0-9]+)?");
+            try {
+                if (base.getParent() == null || !base.getParent().isDirectory()) {
+                    continue;
+                }
+                for (FilePath sibling : base.getParent().listDirectories()) {
+                    if (siblings.matcher(sibling.getName()).matches()) {
+                        workspaces.add(sibling);
+                    }
+                }
+            } catch (IOException e) {
+                // the node is going away, its workspaces will be maintained next time
+                workspaces.add(base);
+            }
+        }
+        return workspaces;
+    }
+
+    private static String nodeName(Node node) {
+        return node.getNodeName().length() == 0 ? "master" : node.getNodeName();
+    }
+
+    /**
+     * Collects the unused shared repositories of a node and packs the others. Returns the report lines.
+     */
+    private static class SharedRepositoriesCallable implements FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String gitExe;
+        private final TaskListener listener;
+        private final Set<String> jobs;
+
+        SharedRepositoriesCallable(String gitExe, TaskListener listener, Set<String> jobs) {
+            this.gitExe = gitExe;
+            this.listener = listener;
+            this.jobs = jobs;
+        }
+
+        public List<String> invoke(File root, VirtualChannel channel) throws IOException {
+            List<String> reports = new ArrayList<String>();
+            MaintenanceCallable maintenance = new MaintenanceCallable(gitExe, listener, false);
+            for (File directory : SharedNodeRepository.collect(root, jobs)) {
+                String report = maintenance.invoke(directory, channel);
+                if (report != null) {
+                    reports.add(report);
+                }
+            }
+            return reports;
+        }
+    }
+
+    /**
+     * Packs a repository if it is above the thresholds. Returns the report line, or null if there was nothing to do.
+     */
+    private static class MaintenanceCallable implements FileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String gitExe;
+        private final TaskListener listener;
+        private final boolean prune;
+        private final int looseObjectsThreshold = LOOSE_OBJECTS_THRESHOLD;
+        private final int looseRefsThreshold = LOOSE_REFS_THRESHOLD;
+
+        MaintenanceCallable(String gitExe, TaskListener listener, boolean prune) {
+            this.gitExe = gitExe;
+            this.listener = listener;
+            this.prune = prune;
+        }
+
+        public String invoke(File directory, VirtualChannel channel) throws IOException {
+            // Bare shared repositories are their own git directory
+            File gitDir = new File(directory, ".git");
+            if (!gitDir.isDirectory()) {
+                if (!new File(directory, "objects").isDirectory()) {
+                    return null;
+                }
+                gitDir = directory;
+            }
+            int looseObjects = countLooseObjects(gitDir);
+            int looseRefs = countFiles(new File(gitDir, "refs"));
+            boolean packRefs = looseRefs > looseRefsThreshold;
+            boolean repack = looseObjects > looseObjectsThreshold;
+            if (!packRefs && !repack) {
+                return null;
+            }
+
+            GitAPI git = new GitAPI(gitExe, new FilePath(directory), listener, new EnvVars());
+            StringBuilder report = new StringBuilder();
+            long probeBefore = probe(git);
+            long start = System.currentTimeMillis();
+            if (packRefs) {
+                long stepStart = System.currentTimeMillis();
+                git.launchCommand("pack-refs", "--all", "--prune");
+                report.append(" pack-refs ").append(System.currentTimeMillis() - stepStart).append(" ms,");
+            }
+            if (repack) {
+                long stepStart = System.currentTimeMillis();
+                // Incremental: only the loose objects are packed, existing packs are left alone
+                git.launchCommand("repack", "-d", "-q");
+                report.append(" repack ").append(System.currentTimeMillis() - stepStart).append(" ms,");
+                if (prune) {
+                    stepStart = System.currentTimeMillis();
+                    git.launchCommand("prune", "--expire=2.weeks.ago");
+                    report.append(" prune ").append(System.currentTimeMillis() - stepStart).append(" ms,");
+                }
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            long probeAfter = probe(git);
+
+            return new StringBuilder()
+                .append(directory).append(": ")
+                .append(looseObjects).append(" -> ").append(countLooseObjects(gitDir)).append(" loose objects, ")
+                .append(looseRefs).append(" -> ").append(countFiles(new File(gitDir, "refs"))).append(" loose refs in ")
+                .append(elapsed).append(" ms (").append(report.substring(1, report.length() - 1)).append("); ")
+                .append("listing refs took ").append(probeBefore).append(" ms before, ")
+                .append(probeAfter).append(" ms after")
+                .toString();
+        }
+
+        /**
+         * Times listing all refs with their objects, which is representative of what fetches and branch listings do.
+         */
+        private static long probe(GitAPI git) {
+            long start = System.currentTimeMillis();
+            git.launchCommand("for-each-ref", "--format=%(objectname) %(objecttype) %(refname)");
+            return System.currentTimeMillis() - start;
+        }
+
+        private static int countLooseObjects(File gitDir) {
+            File[] directories = new File(gitDir, "objects").listFiles();
+            int count = 0;
+            if (directories != null) {
+                for (File directory : directories) {
+                    if (OBJECT_DIR.matcher(directory.getName()).matches()) {
+                        String[] objects = directory.list();
+                        count += objects == null ? 0 : objects.length;
+                    }
+                }
+            }
+            return count;
+        }
+
+        private static int countFiles(File directory) {
+            File[] files = directory.listFiles();
+            int count = 0;
+            if (files != null) {
+                for (File file : files) {
+                    count += file.isDirectory() ? countFiles(file) : 1;
+                }
+            }
+            return count;
+        }
+    }
+}
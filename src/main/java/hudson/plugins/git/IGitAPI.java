@@ -51,6 +51,14 @@ public interface IGitAPI {
 
     void setRemoteUrl(String name, String url) throws GitException;
 
+    /**
+     * Configures the remote like a clone does: its url and its fetch refspecs, which replace any configured before.
+     *
+     * @param remote the remote.
+     * @throws GitException if the configuration cannot be written.
+     */
+    void setRemote(RemoteConfig remote) throws GitException;
+
     String getRemoteUrl(String name, String GIT_DIR) throws GitException;
 
     void setRemoteUrl(String name, String url, String GIT_DIR) throws GitException;
@@ -87,12 +95,80 @@ public interface IGitAPI {
 
     void push(RemoteConfig repository, String revspec) throws GitException;
 
+    /**
+     * Pushes all the refspecs to the repository with one git push, over a single connection. Each ref is updated on
+     * its own, a rejected ref does not keep the others from being pushed. The status of each ref is reported to the
+     * listener.
+     *
+     * @param repository repository to push to.
+     * @param refspecs refspecs to push.
+     * @return the remote refs which were rejected, empty if all were pushed.
+     * @throws GitException if the push fails as a whole, e.g. because the repository cannot be reached.
+     */
+    List<String> push(RemoteConfig repository, List<String> refspecs) throws GitException;
+
     void merge(String revSpec) throws GitException;
 
+    /**
+     * Merges a commit onto a target without touching the index or the work tree.
+     * <p/>
+     * If the commit is already contained in the target the target is returned, if the target is contained in the
+     * commit the commit is returned (fast-forward). Otherwise the merge commit is written to the object database
+     * only; no ref is updated.
+     *
+     * @param target commit to merge onto.
+     * @param commit commit to merge.
+     * @return the resulting commit, or null if the merge conflicts.
+     * @throws GitException if the merge cannot be decided in memory, e.g. because of several merge bases.
+     */
+    ObjectId mergeInMemory(ObjectId target, ObjectId commit) throws GitException;
+
+    /**
+     * Checks whether a commit merges onto a target, like {@link #mergeInMemory(ObjectId, ObjectId)} but without
+     * writing any object. As renames are not detected, only conflicts on paths present on both sides are reported.
+     *
+     * @param target commit to merge onto.
+     * @param commit commit to merge.
+     * @return false if a path changed on both sides conflicts, true otherwise.
+     * @throws GitException if the merge cannot be decided in memory, e.g. because of several merge bases.
+     */
+    boolean canMergeInMemory(ObjectId target, ObjectId commit) throws GitException;
+
+    /**
+     * Returns true if the index has unmerged entries, i.e. the last merge stopped on conflicts.
+     *
+     * @return true if there are unmerged paths.
+     * @throws GitException if the index cannot be read.
+     */
+    boolean hasUnmergedPaths() throws GitException;
+
+    /**
+     * Aborts the merge in progress, if any, restoring the index and the work tree to HEAD.
+     *
+     * @throws GitException if the merge cannot be aborted.
+     */
+    void abortMerge() throws GitException;
+
     void clone(RemoteConfig source) throws GitException;
 
     void clean() throws GitException;
 
+    /**
+     * Removes untracked and ignored files like <tt>git clean -fdx</tt>, using the index and the untracked paths
+     * found by the previous call rather than walking the work tree.
+     *
+     * @throws GitException if the workspace cannot be cleaned.
+     */
+    void fastClean() throws GitException;
+
+    /**
+     * Runs {@link #fastClean()} in the submodules, in parallel.
+     *
+     * @param recursive also clean nested submodules.
+     * @throws GitException if a submodule cannot be cleaned.
+     */
+    void submoduleFastClean(boolean recursive) throws GitException;
+
     void prune(RemoteConfig repository) throws GitException;
 
     ObjectId revParse(String revName) throws GitException;
@@ -109,6 +185,23 @@ public interface IGitAPI {
 
     List<ObjectId> revListAll() throws GitException;
 
+    /**
+     * Iterates lazily over the commits reachable from the branch, like <tt>git rev-list branch</tt>.
+     *
+     * @param branchId branch or any other commit-ish.
+     * @return iterator over the commits, to be closed once done with.
+     * @throws GitException if the branch cannot be resolved.
+     */
+    RevListIterator revListBranchIterator(String branchId) throws GitException;
+
+    /**
+     * Iterates lazily over the commits reachable from any ref or HEAD, like <tt>git rev-list --all</tt>.
+     *
+     * @return iterator over the commits, to be closed once done with.
+     * @throws GitException if the refs cannot be read.
+     */
+    RevListIterator revListAllIterator() throws GitException;
+
     String describe(String commitIsh) throws GitException;
 
     List<Tag> getTagsOnCommit(String revName) throws GitException, IOException;
@@ -119,6 +212,15 @@ public interface IGitAPI {
 
     void deleteTag(String tagName) throws GitException;
 
+    /**
+     * Appends a line to the note of HEAD in the given notes ref, creating the note if needed.
+     *
+     * @param note line to append.
+     * @param notesRef name of the notes ref, without refs/notes/.
+     * @throws GitException if the note cannot be written.
+     */
+    void appendNote(String note, String notesRef) throws GitException;
+
     Set<String> getTagNames(String tagPattern) throws GitException;
 
     void changelog(String revFrom, String revTo, OutputStream fos) throws GitException;
@@ -132,7 +234,8 @@ public interface IGitAPI {
     void checkout(String commitish) throws GitException;
 
     /**
-     * Checks out the specified commit/ref into the workspace.
+     * Checks out the specified commit/ref into the workspace, discarding local modifications. The work tree and the
+     * index are updated in a single pass which only rewrites the files that differ from the target tree.
      *
      * @param branch If non-null, move/create the branch in this name at the specified commit-ish and check out that branch.
      * @param commitish commitish value.
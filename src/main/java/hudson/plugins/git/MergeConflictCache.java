@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.AnyObjectId;
+
+/**
+ * The (candidate, merge target) pairs of a workspace repository known not to merge cleanly.
+ * <p/>
+ * Kept in the git directory of the workspace, hence per job, so that a candidate whose merge already failed onto
+ * the same target is rejected without merging again. Only the most recent {@link #MAX_ENTRIES} pairs are kept.
+ */
+final class MergeConflictCache {
+    /**
+     * File in the git directory listing the pairs, one "candidate target" per line.
+     */
+    static final String FILE = "hudson-merge-conflicts";
+
+    static final int MAX_ENTRIES = 1000;
+
+    private MergeConflictCache() {
+    }
+
+    /**
+     * Returns true if the candidate is known not to merge cleanly onto the target.
+     *
+     * @param gitDir git directory of the workspace.
+     * @param candidate candidate commit.
+     * @param target merge target commit.
+     * @return true if the merge is known to conflict.
+     */
+    static synchronized boolean isConflict(File gitDir, AnyObjectId candidate, AnyObjectId target) {
+        return read(gitDir).contains(key(candidate, target));
+    }
+
+    /**
+     * Records that the candidate does not merge cleanly onto the target.
+     *
+     * @param gitDir git directory of the workspace.
+     * @param candidate candidate commit.
+     * @param target merge target commit.
+     */
+    static synchronized void recordConflict(File gitDir, AnyObjectId candidate, AnyObjectId target) {
+        List<String> entries = read(gitDir);
+        String key = key(candidate, target);
+        if (entries.contains(key)) {
+            return;
+        }
+        entries.add(key);
+        if (entries.size() > MAX_ENTRIES) {
+            entries = entries.subList(entries.size() - MAX_ENTRIES, entries.size());
+        }
+        try {
+            FileUtils.writeLines(new File(gitDir, FILE), "UTF-8", entries);
+        } catch (IOException e) {
+            // only an optimization, the merge will be attempted again
+        }
+    }
+
+    private static List<String> read(File gitDir) {
+        File file = new File(gitDir, FILE);
+        try {
+            if (file.exists()) {
+                return new ArrayList<String>(FileUtils.readLines(file, "UTF-8"));
+            }
+        } catch (IOException e) {
+            // start over
+        }
+        return new ArrayList<String>();
+    }
+
+    private static String key(AnyObjectId candidate, AnyObjectId target) {
+        return candidate.name() + " " + target.name();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * A list of object ids stored as raw words in a single primitive array, 20 bytes per id instead of an
+ * {@link ObjectId} instance each. Ids are materialized when read.
+ */
+public final class ObjectIdArray extends AbstractList<ObjectId> implements RandomAccess, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int WORDS = Constants.OBJECT_ID_LENGTH / 4;
+
+    private int[] words;
+    private int size;
+
+    public ObjectIdArray() {
+        this(64);
+    }
+
+    /**
+     * @param capacity initial number of ids.
+     */
+    public ObjectIdArray(int capacity) {
+        words = new int[Math.max(1, capacity) * WORDS];
+    }
+
+    @Override
+    public ObjectId get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return ObjectId.fromRaw(words, index * WORDS);
+    }
+
+    @Override
+    public boolean add(ObjectId id) {
+        add((AnyObjectId) id);
+        return true;
+    }
+
+    /**
+     * Appends an id.
+     *
+     * @param id id.
+     */
+    public void add(AnyObjectId id) {
+        if ((size + 1) * WORDS > words.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        id.copyRawTo(raw, 0);
+        int offset = size * WORDS;
+        for (int i = 0; i < WORDS; i++) {
+            words[offset + i] = NB.decodeInt32(raw, i * 4);
+        }
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Releases the capacity beyond the current size.
+     */
+    public void trimToSize() {
+        if (words.length > size * WORDS) {
+            words = Arrays.copyOf(words, Math.max(1, size) * WORDS);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Bare repository under the root of a node which holds the objects of one remote for all the workspaces of that
+ * node.
+ * <p/>
+ * The remote is fetched once into the shared repository. Workspaces borrow its objects through
+ * <tt>objects/info/alternates</tt> and fetch their refs from it locally, so creating or updating a workspace only
+ * writes refs, the index and the working files. Every workspace registers itself and its job in the <tt>users</tt>
+ * directory of the shared repository; {@link GitWorkspaceMaintenance} drops the users whose job or directory is gone
+ * or which do not list the shared objects in their alternates anymore, and deletes the shared repository once it has
+ * none left. The branches and tags deleted from the remote are dropped from the shared repository, but its objects
+ * are never pruned, so the objects a workspace borrows cannot disappear under it.
+ * <p/>
+ * Fetches are serialized per repository by a lock in this JVM and a file lock against other processes using the same
+ * node root. A workspace which waited for the lock does not fetch again if a fetch started after its request.
+ */
+final class SharedNodeRepository {
+    /**
+     * Directory under the node root holding the shared repositories.
+     */
+    static final String ROOT = "git-shared";
+
+    private static final String USERS = "users";
+    private static final String LOCK = "hudson.lock";
+
+    private static final Map<File, SharedNodeRepository> REPOSITORIES = new HashMap<File, SharedNodeRepository>();
+
+    private final File directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean fetched;
+    private long lastFetchStarted;
+
+    private SharedNodeRepository(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the shared repository of the remote under the given node root.
+     *
+     * @param root the {@link #ROOT} directory of the node.
+     * @param uri url of the remote.
+     * @return shared repository.
+     */
+    static synchronized SharedNodeRepository get(File root, URIish uri) {
+        File directory = new File(root, Util.getDigestOf(uri.toPrivateString()) + ".git").getAbsoluteFile();
+        SharedNodeRepository repository = REPOSITORIES.get(directory);
+        if (repository == null) {
+            repository = new SharedNodeRepository(directory);
+            REPOSITORIES.put(directory, repository);
+        }
+        return repository;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Fetches all branches and tags of the remote into the shared repository, creating it if needed.
+     *
+     * @param gitExe git executable.
+     * @param uri url of the remote.
+     * @param listener listener.
+     * @param environment environment.
+     * @throws IOException if the shared repository could not be created or locked.
+     * @throws GitException if the fetch failed.
+     */
+    void fetch(String gitExe, URIish uri, TaskListener listener, EnvVars environment) throws IOException {
+        long requested = System.nanoTime();
+        lock.lock();
+        RandomAccessFile lockFile = null;
+        FileLock fileLock = null;
+        try {
+            if (fetched && lastFetchStarted - requested >= 0) {
+                listener.getLogger().println("Shared repository " + directory + " has just been fetched");
+                return;
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            lockFile = new RandomAccessFile(new File(directory, LOCK), "rw");
+            fileLock = lockFile.getChannel().lock();
+
+            GitAPI git = new GitAPI(gitExe, new FilePath(directory), listener, environment);
+            if (!new File(directory, "objects").isDirectory()) {
+                git.launchCommand("init", "--bare");
+                // Workspaces borrow the objects, git must never drop any of them on its own
+                git.launchCommand("config", "gc.auto", "0");
+            }
+            long started = System.nanoTime();
+            listener.getLogger().println("Fetching " + uri + " into the shared repository " + directory);
+            git.launchCommand("fetch", "--prune", uri.toPrivateString(), "+refs/heads/*:refs/heads/*",
+                "+refs/tags/*:refs/tags/*");
+            fetched = true;
+            lastFetchStarted = started;
+        } finally {
+            if (fileLock != null) {
+                fileLock.release();
+            }
+            if (lockFile != null) {
+                lockFile.close();
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the workspace repository borrow the objects of the shared repository and fetches the refs of the remote
+     * into it. The workspace repository is created with the remote configured if it does not exist yet.
+     *
+     * @param git git of the workspace.
+     * @param workspace the workspace.
+     * @param remote the remote.
+     * @param job full name of the job the workspace belongs to.
+     * @throws IOException if the workspace could not be linked.
+     * @throws GitException if the fetch failed.
+     */
+    void attach(IGitAPI git, File workspace, RemoteConfig remote, String job) throws IOException {
+        if (!git.hasGitRepo()) {
+            git.init();
+            git.setRemote(remote);
+        }
+
+        // Not collected while a workspace is being registered
+        lock.lock();
+        try {
+            register(workspace, job);
+            for (RefSpec refspec : remote.getFetchRefSpecs()) {
+                git.fetch(directory.getAbsolutePath(), refspec.toString());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void register(File workspace, String job) throws IOException {
+        File alternates = new File(workspace, ".git/objects/info/alternates");
+        String objects = new File(directory, "objects").getAbsolutePath();
+        List<String> lines = new ArrayList<String>();
+        if (alternates.exists()) {
+            lines.addAll(FileUtils.readLines(alternates));
+        }
+        if (!lines.contains(objects)) {
+            lines.add(objects);
+            FileUtils.writeLines(alternates, lines);
+        }
+
+        String path = workspace.getCanonicalPath();
+        FileUtils.writeLines(new File(new File(directory, USERS), Util.getDigestOf(path)), Arrays.asList(path, job));
+    }
+
+    /**
+     * Drops the users of the shared repositories under the given root which do not borrow from them anymore, and
+     * deletes the shared repositories left without users. A user is dropped once its job has been deleted, its
+     * directory is gone or its <tt>objects/info/alternates</tt> no longer lists the objects of the shared repository;
+     * the repositories of the workspaces are never touched, whichever job or configuration they belong to. Shared
+     * repositories which are being fetched or attached are left alone.
+     *
+     * @param root the {@link #ROOT} directory of the node.
+     * @param jobs full names of the existing jobs.
+     * @return the shared repositories which are still used.
+     * @throws IOException if a registration could not be read or a shared repository could not be deleted.
+     */
+    static List<File> collect(File root, Set<String> jobs) throws IOException {
+        List<File> used = new ArrayList<File>();
+        File[] directories = root.listFiles();
+        if (directories == null) {
+            return used;
+        }
+        for (File directory : directories) {
+            if (!directory.getName().endsWith(".git")) {
+                continue;
+            }
+            SharedNodeRepository repository;
+            synchronized (SharedNodeRepository.class) {
+                File key = directory.getAbsoluteFile();
+                repository = REPOSITORIES.get(key);
+                if (repository == null) {
+                    repository = new SharedNodeRepository(key);
+                    REPOSITORIES.put(key, repository);
+                }
+            }
+            if (!repository.lock.tryLock()) {
+                used.add(directory);
+                continue;
+            }
+            try {
+                if (repository.dropStaleUsers(jobs) > 0) {
+                    used.add(directory);
+                } else {
+                    // The next workspace needing it fetches it again from scratch
+                    repository.fetched = false;
+                    Util.deleteRecursive(directory);
+                }
+            } finally {
+                repository.lock.unlock();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Deletes the registrations of the users which do not borrow the objects of this repository anymore.
+     *
+     * @return the number of users left.
+     */
+    private int dropStaleUsers(Set<String> jobs) throws IOException {
+        String objects = new File(directory, "objects").getAbsolutePath();
+        File[] users = new File(directory, USERS).listFiles();
+        int remaining = 0;
+        if (users != null) {
+            for (File user : users) {
+                // The path of the workspace, then the job it belongs to
+                List<String> registration = FileUtils.readLines(user);
+                File path = new File(registration.isEmpty() ? "" : registration.get(0).trim());
+                File alternates = new File(path, ".git/objects/info/alternates");
+                boolean jobExists = registration.size() < 2 || jobs.contains(registration.get(1).trim());
+                if (jobExists && path.isDirectory() && alternates.exists()
+                    && FileUtils.readLines(alternates).contains(objects)) {
+                    remaining++;
+                } else {
+                    user.delete();
+                }
+            }
+        }
+        return remaining;
+    }
+}
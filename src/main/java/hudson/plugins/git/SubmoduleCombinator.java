@@ -34,9 +34,25 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
 
 /**
  * A common usecase for git submodules is to have child submodules, and a parent 'configuration' project that ties the
@@ -46,6 +62,18 @@ import org.eclipse.jgit.lib.ObjectId;
  * @author nigelmagnay
  */
 public class SubmoduleCombinator {
+    /**
+     * Maximum number of combinations generated by one build.
+     */
+    public static int MAX_COMBINATIONS = Integer.getInteger(SubmoduleCombinator.class.getName() + ".maxCombinations",
+        100);
+
+    /**
+     * Whether the combinations are written as commits directly into the repository, several at a time, rather than
+     * checked out and committed one after the other in the workspace.
+     */
+    public static boolean IN_MEMORY = Boolean.getBoolean(SubmoduleCombinator.class.getName() + ".inMemory");
+
     IGitAPI git;
     File workspace;
     TaskListener listener;
@@ -65,9 +93,12 @@ public class SubmoduleCombinator {
     }
 
     public void createSubmoduleCombinations() throws GitException, IOException {
-        Map<IndexEntry, Collection<Revision>> moduleBranches = new HashMap<IndexEntry, Collection<Revision>>();
+        SubmoduleHistoryIndex index = loadIndex();
+        ObjectId headSha1 = git.revParse("HEAD");
+
+        Map<IndexEntry, Collection<Revision>> moduleBranches = new LinkedHashMap<IndexEntry, Collection<Revision>>();
 
-        for (IndexEntry submodule : git.getSubmodules("HEAD")) {
+        for (IndexEntry submodule : toIndexEntries(getGitlinks(index, headSha1))) {
             File subdir = new File(workspace, submodule.getFile());
             IGitAPI subGit = new GitAPI(git.getGitExe(), new FilePath(subdir), listener, git.getEnvironment());
 
@@ -79,9 +110,6 @@ public class SubmoduleCombinator {
             moduleBranches.put(submodule, items);
         }
 
-        // Remove any uninteresting branches
-
-
         for (IndexEntry entry : moduleBranches.keySet()) {
             listener.getLogger().print("Submodule " + entry.getFile() + " branches");
             for (Revision br : moduleBranches.get(entry)) {
@@ -91,62 +119,169 @@ public class SubmoduleCombinator {
             listener.getLogger().print("\n");
         }
 
-        // Make all the possible combinations
-        List<Map<IndexEntry, Revision>> combinations = createCombinations(moduleBranches);
-
-        listener.getLogger().println("There are " + combinations.size() + " submodule/revision combinations possible");
+        // Every distinct submodule configuration found in the history, with a commit having it, and indexed by the
+        // commit of each submodule
+        Map<Map<String, ObjectId>, ObjectId> configurations = getConfigurations(index);
+        Map<String, Map<ObjectId, List<Map<String, ObjectId>>>> bySubmoduleSha1
+            = new HashMap<String, Map<ObjectId, List<Map<String, ObjectId>>>>();
+        for (Map<String, ObjectId> configuration : configurations.keySet()) {
+            for (Map.Entry<String, ObjectId> gitlink : configuration.entrySet()) {
+                Map<ObjectId, List<Map<String, ObjectId>>> bySha1 = bySubmoduleSha1.get(gitlink.getKey());
+                if (bySha1 == null) {
+                    bySha1 = new HashMap<ObjectId, List<Map<String, ObjectId>>>();
+                    bySubmoduleSha1.put(gitlink.getKey(), bySha1);
+                }
+                List<Map<String, ObjectId>> withSha1 = bySha1.get(gitlink.getValue());
+                if (withSha1 == null) {
+                    withSha1 = new ArrayList<Map<String, ObjectId>>();
+                    bySha1.put(gitlink.getValue(), withSha1);
+                }
+                withSha1.add(configuration);
+            }
+        }
 
-        // Create a map which is SHA1 -> Submodule IDs that were present
-        Map<ObjectId, List<IndexEntry>> entriesMap = new HashMap<ObjectId, List<IndexEntry>>();
-        // Knock out already-defined configurations
-        for (ObjectId sha1 : git.revListAll()) {
-            // What's the submodule configuration
-            List<IndexEntry> entries = git.getSubmodules(sha1.name());
-            entriesMap.put(sha1, entries);
+        SubmoduleTasks tasks = IN_MEMORY && git instanceof GitAPI ? new SubmoduleTasks(listener) : null;
+        CombinationIterator combinations = new CombinationIterator(moduleBranches);
+        // The size saturates when there are too many combinations to count
+        boolean countable = combinations.getSize() < Long.MAX_VALUE;
+        listener.getLogger().println("There are " + (countable ? combinations.getSize() : "countless")
+            + " submodule/revision combinations possible");
 
-        }
+        // Make up the combinations
+        int generated = 0;
+        int existing = 0;
+        while (combinations.hasNext()) {
+            Map<IndexEntry, Revision> combination = combinations.next();
+            Map<String, ObjectId> gitlinks = toGitlinks(combination);
+            if (configurations.containsKey(gitlinks)) {
+                existing++;
+                continue;
+            }
+            if (generated >= MAX_COMBINATIONS) {
+                listener.getLogger().println("Stopped at " + MAX_COMBINATIONS + " generated combinations, "
+                    + (countable ? String.valueOf(combinations.getSize() - generated - existing) : "unknown")
+                    + " left unexamined; raise " + SubmoduleCombinator.class.getName()
+                    + ".maxCombinations to generate more");
+                break;
+            }
 
-        for (List<IndexEntry> entries : entriesMap.values()) {
-            for (Iterator<Map<IndexEntry, Revision>> it = combinations.iterator(); it.hasNext();) {
-                Map<IndexEntry, Revision> item = it.next();
-                if (matches(item, entries)) {
-                    it.remove();
-                    break;
+            // By default, use the head sha1, but let's see if we can find the most appropriate place to create
+            // the branch: the configuration with the same submodules sharing the most commits with the combination
+            ObjectId sha1 = headSha1;
+            Map<Map<String, ObjectId>, Integer> shared = new HashMap<Map<String, ObjectId>, Integer>();
+            int max = 0;
+            for (Map.Entry<String, ObjectId> gitlink : gitlinks.entrySet()) {
+                Map<ObjectId, List<Map<String, ObjectId>>> bySha1 = bySubmoduleSha1.get(gitlink.getKey());
+                List<Map<String, ObjectId>> candidates = bySha1 == null ? null : bySha1.get(gitlink.getValue());
+                if (candidates == null) {
+                    continue;
+                }
+                for (Map<String, ObjectId> candidate : candidates) {
+                    if (!candidate.keySet().equals(gitlinks.keySet())) {
+                        continue;
+                    }
+                    Integer count = shared.get(candidate);
+                    count = count == null ? 1 : count + 1;
+                    shared.put(candidate, count);
+                    if (count > max) {
+                        max = count;
+                        sha1 = configurations.get(candidate);
+                    }
                 }
+            }
 
+            if (tasks != null) {
+                final ObjectId base = sha1;
+                final Map<IndexEntry, Revision> settings = combination;
+                final String name = nextBranchName();
+                tasks.submit("Created " + name, new SubmoduleTasks.Task() {
+                    public void run(SubmoduleTasks tasks) throws GitException {
+                        makeCombination(base, name, settings);
+                    }
+                });
+            } else {
+                git.checkout(sha1.name());
+                makeCombination(combination);
             }
+            generated++;
+        }
+        if (tasks != null) {
+            tasks.await();
         }
 
-        listener.getLogger().println("There are " + combinations.size() + " configurations that could be generated.");
-
-        ObjectId headSha1 = git.revParse("HEAD");
-
+        listener.getLogger().println(existing + " combinations already existed, " + generated + " were generated");
+    }
 
-        // Make up the combinations
+    /**
+     * Loads the {@link SubmoduleHistoryIndex} when the repository can be read in-process.
+     *
+     * @return the index, or null if the submodules of every commit have to be listed with git.
+     */
+    private SubmoduleHistoryIndex loadIndex() throws IOException {
+        if (!(git instanceof GitAPI)) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        SubmoduleHistoryIndex index = SubmoduleHistoryIndex.load(((GitAPI) git).getRepository());
+        listener.getLogger().println("Indexed the submodules of " + index.getCommits().size() + " commits in "
+            + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
 
-        for (Map<IndexEntry, Revision> combination : combinations) {
-            // By default, use the head sha1
-            ObjectId sha1 = headSha1;
-            int min = Integer.MAX_VALUE;
-
-            // But let's see if we can find the most appropriate place to create the branch
-            for (ObjectId sha : entriesMap.keySet()) {
-                List<IndexEntry> entries = entriesMap.get(sha);
-                int value = difference(combination, entries);
-                if (value > 0 && value < min) {
-                    min = value;
-                    sha1 = sha;
+    /**
+     * Returns every distinct set of submodules of the commits reachable from the refs, with the most recent commit
+     * having it. Read from the index when there is one, otherwise the commits are streamed from git and only the
+     * distinct sets are kept.
+     */
+    private Map<Map<String, ObjectId>, ObjectId> getConfigurations(SubmoduleHistoryIndex index) {
+        Map<Map<String, ObjectId>, ObjectId> configurations = new HashMap<Map<String, ObjectId>, ObjectId>();
+        if (index != null) {
+            configurations.putAll(index.getConfigurations());
+            return configurations;
+        }
+        RevListIterator commits = git.revListAllIterator();
+        try {
+            while (commits.hasNext()) {
+                ObjectId sha1 = commits.next();
+                Map<String, ObjectId> gitlinks = getGitlinks(null, sha1);
+                if (!configurations.containsKey(gitlinks)) {
+                    configurations.put(gitlinks, sha1);
                 }
+            }
+        } finally {
+            commits.close();
+        }
+        return configurations;
+    }
 
-                if (min == 1) {
-                    break; // look no further
-                }
+    private Map<String, ObjectId> getGitlinks(SubmoduleHistoryIndex index, ObjectId commit) {
+        if (index != null) {
+            Map<String, ObjectId> gitlinks = index.getSubmodules(commit);
+            if (gitlinks != null) {
+                return gitlinks;
             }
+        }
+        Map<String, ObjectId> gitlinks = new TreeMap<String, ObjectId>();
+        for (IndexEntry entry : git.getSubmodules(commit.name())) {
+            gitlinks.put(entry.getFile(), ObjectId.fromString(entry.getObject()));
+        }
+        return gitlinks;
+    }
 
-            git.checkout(sha1.name());
-            makeCombination(combination);
+    private static List<IndexEntry> toIndexEntries(Map<String, ObjectId> gitlinks) {
+        List<IndexEntry> submodules = new ArrayList<IndexEntry>();
+        for (Map.Entry<String, ObjectId> gitlink : gitlinks.entrySet()) {
+            submodules.add(new IndexEntry("160000", "commit", gitlink.getValue().name(), gitlink.getKey()));
         }
+        return submodules;
+    }
 
+    private static Map<String, ObjectId> toGitlinks(Map<IndexEntry, Revision> combination) {
+        Map<String, ObjectId> gitlinks = new TreeMap<String, ObjectId>();
+        for (Map.Entry<IndexEntry, Revision> entry : combination.entrySet()) {
+            gitlinks.put(entry.getKey().getFile(), entry.getValue().getSha1());
+        }
+        return gitlinks;
     }
 
     private Collection<Revision> filterRevisions(String name, Collection<Revision> items) {
@@ -176,16 +311,11 @@ public class SubmoduleCombinator {
 
     protected void makeCombination(Map<IndexEntry, Revision> settings) {
         // Assume we are checked out
-        String name = "combine-" + tid + "-" + (idx++);
+        String name = nextBranchName();
         git.branch(name);
         git.checkout(name);
 
-        String commit = "Hudson generated combination of:\n";
-
-        for (IndexEntry submodule : settings.keySet()) {
-            Revision branch = settings.get(submodule);
-            commit += "  " + submodule.getFile() + " " + branch.toString() + "\n";
-        }
+        String commit = describe(settings);
 
         listener.getLogger().print(commit);
 
@@ -204,6 +334,90 @@ public class SubmoduleCombinator {
 
     }
 
+    /**
+     * Creates the combination as a branch without touching the workspace: the tree of the base commit with the
+     * gitlinks replaced is written along with a commit on top of the base.
+     *
+     * @param base commit to start from.
+     * @param name branch to create.
+     * @param settings revision of every submodule.
+     * @throws GitException if the objects or the branch cannot be written.
+     */
+    protected void makeCombination(ObjectId base, String name, Map<IndexEntry, Revision> settings)
+        throws GitException {
+        String message = describe(settings);
+        try {
+            GitAPI gitApi = (GitAPI) git;
+            Repository repo = gitApi.getRepository();
+            ObjectInserter inserter = repo.newObjectInserter();
+            ObjectReader reader = repo.newObjectReader();
+            RevWalk walk = new RevWalk(reader);
+            try {
+                DirCache dc = DirCache.newInCore();
+                DirCacheBuilder builder = dc.builder();
+                builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, walk.parseCommit(base).getTree());
+                builder.finish();
+                DirCacheEditor editor = dc.editor();
+                for (Map.Entry<IndexEntry, Revision> submodule : settings.entrySet()) {
+                    final ObjectId sha1 = submodule.getValue().getSha1();
+                    editor.add(new DirCacheEditor.PathEdit(submodule.getKey().getFile()) {
+                        @Override
+                        public void apply(DirCacheEntry ent) {
+                            ent.setFileMode(FileMode.GITLINK);
+                            ent.setObjectId(sha1);
+                        }
+                    });
+                }
+                editor.finish();
+
+                PersonIdent author;
+                PersonIdent committer;
+                synchronized (gitApi) {
+                    gitApi.parseEnvVars(gitApi.getEnvironment());
+                    author = gitApi.getAuthor() != null ? gitApi.getAuthor() : new PersonIdent(repo);
+                    committer = gitApi.getCommitter() != null ? gitApi.getCommitter() : new PersonIdent(repo);
+                }
+                CommitBuilder commit = new CommitBuilder();
+                commit.setTreeId(dc.writeTree(inserter));
+                commit.setParentId(base);
+                commit.setAuthor(author);
+                commit.setCommitter(committer);
+                commit.setMessage(message);
+                ObjectId id = inserter.insert(commit);
+                inserter.flush();
+
+                RefUpdate ref = repo.updateRef(Constants.R_HEADS + name);
+                ref.setNewObjectId(id);
+                ref.setExpectedOldObjectId(ObjectId.zeroId());
+                ref.setRefLogMessage("combination", false);
+                RefUpdate.Result result = ref.update(walk);
+                if (result != RefUpdate.Result.NEW) {
+                    throw new GitException("Could not create " + name + ": " + result);
+                }
+            } finally {
+                walk.release();
+                inserter.release();
+            }
+        } catch (IOException e) {
+            throw new GitException("Could not create " + name, e);
+        }
+        listener.getLogger().print(message);
+    }
+
+    private synchronized String nextBranchName() {
+        return "combine-" + tid + "-" + (idx++);
+    }
+
+    private static String describe(Map<IndexEntry, Revision> settings) {
+        String commit = "Hudson generated combination of:\n";
+
+        for (IndexEntry submodule : settings.keySet()) {
+            Revision branch = settings.get(submodule);
+            commit += "  " + submodule.getFile() + " " + branch.toString() + "\n";
+        }
+        return commit;
+    }
+
     public int difference(Map<IndexEntry, Revision> item, List<IndexEntry> entries) {
         int difference = 0;
         if (entries.size() != item.keySet().size()) {
@@ -222,7 +436,7 @@ public class SubmoduleCombinator {
                 return -1;
             }
 
-            if (!entry.object.equals(b.getSha1())) {
+            if (!entry.object.equals(b.getSha1().name())) {
                 difference++;
             }
 
@@ -234,6 +448,14 @@ public class SubmoduleCombinator {
         return (difference(item, entries) == 0);
     }
 
+    /**
+     * Materializes all the combinations at once.
+     *
+     * @param moduleBranches branches of every submodule, consumed.
+     * @return combinations.
+     * @deprecated use {@link CombinationIterator}, which does not hold all the combinations in memory.
+     */
+    @Deprecated
     public List<Map<IndexEntry, Revision>> createCombinations(Map<IndexEntry, Collection<Revision>> moduleBranches) {
 
         if (moduleBranches.keySet().size() == 0) {
@@ -273,4 +495,76 @@ public class SubmoduleCombinator {
 
         return result;
     }
+
+    /**
+     * Iterates over all the combinations of one revision per submodule, without holding them in memory.
+     */
+    static class CombinationIterator implements Iterator<Map<IndexEntry, Revision>> {
+        private final IndexEntry[] submodules;
+        private final Revision[][] revisions;
+        private final int[] positions;
+        private final long size;
+        private boolean hasNext;
+
+        CombinationIterator(Map<IndexEntry, Collection<Revision>> moduleBranches) {
+            int count = moduleBranches.size();
+            submodules = new IndexEntry[count];
+            revisions = new Revision[count][];
+            positions = new int[count];
+            long product = count == 0 ? 0 : 1;
+            int i = 0;
+            for (Map.Entry<IndexEntry, Collection<Revision>> entry : moduleBranches.entrySet()) {
+                submodules[i] = entry.getKey();
+                revisions[i] = entry.getValue().toArray(new Revision[entry.getValue().size()]);
+                int length = revisions[i].length;
+                if (length == 0) {
+                    product = 0;
+                } else if (product > Long.MAX_VALUE / length) {
+                    product = Long.MAX_VALUE;
+                } else {
+                    product *= length;
+                }
+                i++;
+            }
+            size = product;
+            hasNext = size > 0;
+        }
+
+        /**
+         * Returns the number of combinations, {@link Long#MAX_VALUE} if there are more.
+         *
+         * @return number of combinations.
+         */
+        long getSize() {
+            return size;
+        }
+
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        public Map<IndexEntry, Revision> next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            Map<IndexEntry, Revision> combination = new HashMap<IndexEntry, Revision>();
+            for (int i = 0; i < submodules.length; i++) {
+                combination.put(submodules[i], revisions[i][positions[i]]);
+            }
+            // Advance like an odometer, the last submodule fastest
+            hasNext = false;
+            for (int i = submodules.length - 1; i >= 0; i--) {
+                if (++positions[i] < revisions[i].length) {
+                    hasNext = true;
+                    break;
+                }
+                positions[i] = 0;
+            }
+            return combination;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,333 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Submodule commits (gitlinks) of every commit reachable from the refs of a superproject, by path.
+ * <p/>
+ * Computed in-process: the commits are walked parents first and the gitlinks of a commit are those of its first
+ * parent updated with the gitlinks which differ between both trees, so only the subtrees which changed are read.
+ * The result is appended to a file in the git directory and later loads only compute the commits which are new.
+ * Every distinct set of gitlinks is stored once.
+ */
+final class SubmoduleHistoryIndex {
+    /**
+     * File in the git directory holding the index.
+     */
+    static final String FILE = "hudson-submodule-index";
+
+    private static final int MAGIC = 0x67736d69;
+    private static final int VERSION = 1;
+    private static final byte SET = 'S';
+    private static final byte COMMIT = 'C';
+
+    /**
+     * Gitlinks of the reachable commits.
+     */
+    private final Map<ObjectId, SortedMap<String, ObjectId>> commits;
+
+    /**
+     * Every distinct set of gitlinks of the reachable commits, with the last commit having it in topological order.
+     */
+    private final Map<SortedMap<String, ObjectId>, ObjectId> configurations;
+
+    private SubmoduleHistoryIndex(Map<ObjectId, SortedMap<String, ObjectId>> commits,
+                                  Map<SortedMap<String, ObjectId>, ObjectId> configurations) {
+        this.commits = commits;
+        this.configurations = configurations;
+    }
+
+    /**
+     * Loads the index of the repository, bringing it up to date with the refs.
+     *
+     * @param repo superproject.
+     * @return the index.
+     * @throws IOException if the repository or the index cannot be read, or the index cannot be written.
+     */
+    static SubmoduleHistoryIndex load(Repository repo) throws IOException {
+        File file = new File(repo.getDirectory(), FILE);
+        List<SortedMap<String, ObjectId>> sets = new ArrayList<SortedMap<String, ObjectId>>();
+        Map<ObjectId, SortedMap<String, ObjectId>> known = new HashMap<ObjectId, SortedMap<String, ObjectId>>();
+        if (!read(file, sets, known)) {
+            sets.clear();
+            known.clear();
+            file.delete();
+        }
+
+        Map<SortedMap<String, ObjectId>, Integer> setIds = new HashMap<SortedMap<String, ObjectId>, Integer>();
+        for (int i = 0; i < sets.size(); i++) {
+            setIds.put(sets.get(i), i);
+        }
+
+        Map<ObjectId, SortedMap<String, ObjectId>> reachable = new HashMap<ObjectId, SortedMap<String, ObjectId>>();
+        Map<SortedMap<String, ObjectId>, ObjectId> configurations = new HashMap<SortedMap<String, ObjectId>, ObjectId>();
+        DataOutputStream out = null;
+        RevWalk walk = new RevWalk(repo);
+        try {
+            walk.setRetainBody(false);
+            walk.sort(RevSort.TOPO);
+            walk.sort(RevSort.REVERSE, true);
+            for (ObjectId start : getStarts(repo)) {
+                try {
+                    walk.markStart(walk.parseCommit(start));
+                } catch (IncorrectObjectTypeException e) {
+                    // ref to a tree or a blob
+                } catch (MissingObjectException e) {
+                    // dangling ref
+                }
+            }
+            for (RevCommit commit : walk) {
+                SortedMap<String, ObjectId> gitlinks = known.get(commit);
+                if (gitlinks == null) {
+                    gitlinks = compute(repo, walk, commit, reachable);
+                    if (out == null) {
+                        out = open(file);
+                    }
+                    Integer id = setIds.get(gitlinks);
+                    if (id == null) {
+                        id = sets.size();
+                        sets.add(gitlinks);
+                        setIds.put(gitlinks, id);
+                        writeSet(out, gitlinks);
+                    }
+                    gitlinks = sets.get(id);
+                    writeCommit(out, commit, id);
+                }
+                ObjectId sha1 = commit.copy();
+                reachable.put(sha1, gitlinks);
+                // Parents come first, so the last commit seen is the most recent one with these gitlinks
+                configurations.put(gitlinks, sha1);
+            }
+        } finally {
+            walk.release();
+            IOUtils.closeQuietly(out);
+        }
+        return new SubmoduleHistoryIndex(reachable, configurations);
+    }
+
+    /**
+     * Returns the gitlinks of the reachable commits, by commit.
+     *
+     * @return unmodifiable map.
+     */
+    Map<ObjectId, SortedMap<String, ObjectId>> getCommits() {
+        return Collections.unmodifiableMap(commits);
+    }
+
+    /**
+     * Returns every distinct set of gitlinks of the reachable commits, with the most recent commit having it.
+     *
+     * @return unmodifiable map.
+     */
+    Map<SortedMap<String, ObjectId>, ObjectId> getConfigurations() {
+        return Collections.unmodifiableMap(configurations);
+    }
+
+    /**
+     * Returns the gitlinks of a commit.
+     *
+     * @param commit commit reachable from the refs.
+     * @return gitlinks by path, or null if the commit is not reachable.
+     */
+    SortedMap<String, ObjectId> getSubmodules(ObjectId commit) {
+        return commits.get(commit);
+    }
+
+    /**
+     * Returns what <tt>git rev-list --all</tt> starts from: HEAD and all the refs.
+     */
+    private static List<ObjectId> getStarts(Repository repo) throws IOException {
+        List<ObjectId> starts = new ArrayList<ObjectId>();
+        for (Ref ref : repo.getAllRefs().values()) {
+            Ref peeled = repo.peel(ref);
+            ObjectId id = peeled.getPeeledObjectId() != null ? peeled.getPeeledObjectId() : ref.getObjectId();
+            if (id != null) {
+                starts.add(id);
+            }
+        }
+        ObjectId head = repo.resolve(Constants.HEAD);
+        if (head != null) {
+            starts.add(head);
+        }
+        return starts;
+    }
+
+    /**
+     * Computes the gitlinks of a commit from those of its first parent, which the walk has already returned.
+     */
+    private static SortedMap<String, ObjectId> compute(Repository repo, RevWalk walk, RevCommit commit,
+                                                       Map<ObjectId, SortedMap<String, ObjectId>> reachable)
+        throws IOException {
+        SortedMap<String, ObjectId> gitlinks = new TreeMap<String, ObjectId>();
+        TreeWalk tw = new TreeWalk(repo);
+        try {
+            if (commit.getParentCount() > 0 && reachable.containsKey(commit.getParent(0))) {
+                gitlinks.putAll(reachable.get(commit.getParent(0)));
+                tw.addTree(walk.parseCommit(commit.getParent(0)).getTree());
+            } else {
+                tw.addTree(new EmptyTreeIterator());
+            }
+            tw.addTree(walk.parseCommit(commit).getTree());
+            tw.setFilter(TreeFilter.ANY_DIFF);
+            while (tw.next()) {
+                // Not recursive: a gitlink replaced by a directory with the same name must still be seen
+                if (FileMode.GITLINK.equals(tw.getRawMode(1))) {
+                    gitlinks.put(tw.getPathString(), tw.getObjectId(1));
+                } else if (FileMode.GITLINK.equals(tw.getRawMode(0))) {
+                    gitlinks.remove(tw.getPathString());
+                }
+                if (tw.isSubtree()) {
+                    tw.enterSubtree();
+                }
+            }
+        } finally {
+            tw.release();
+        }
+        return Collections.unmodifiableSortedMap(gitlinks);
+    }
+
+    /**
+     * Reads the index file. A record cut short by an interrupted write is dropped.
+     *
+     * @return false if the file is not a readable index.
+     */
+    private static boolean read(File file, List<SortedMap<String, ObjectId>> sets,
+                                Map<ObjectId, SortedMap<String, ObjectId>> commits) throws IOException {
+        if (!file.exists()) {
+            return true;
+        }
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter);
+        long valid = 0;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            valid = counter.getByteCount();
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    return true;
+                }
+                if (type == SET) {
+                    int size = in.readInt();
+                    SortedMap<String, ObjectId> set = new TreeMap<String, ObjectId>();
+                    for (int i = 0; i < size; i++) {
+                        String path = in.readUTF();
+                        in.readFully(raw);
+                        set.put(path, ObjectId.fromRaw(raw));
+                    }
+                    sets.add(Collections.unmodifiableSortedMap(set));
+                } else if (type == COMMIT) {
+                    in.readFully(raw);
+                    int set = in.readInt();
+                    if (set < 0 || set >= sets.size()) {
+                        return false;
+                    }
+                    commits.put(ObjectId.fromRaw(raw), sets.get(set));
+                } else {
+                    return false;
+                }
+                valid = counter.getByteCount();
+            }
+        } catch (EOFException e) {
+            // interrupted write, truncate to the last complete record before appending
+            in.close();
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            try {
+                truncate.setLength(valid);
+            } finally {
+                truncate.close();
+            }
+            return valid > 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static DataOutputStream open(File file) throws IOException {
+        boolean exists = file.exists();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (!exists) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        return out;
+    }
+
+    private static void writeSet(DataOutputStream out, SortedMap<String, ObjectId> set) throws IOException {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        out.writeByte(SET);
+        out.writeInt(set.size());
+        for (Map.Entry<String, ObjectId> gitlink : set.entrySet()) {
+            out.writeUTF(gitlink.getKey());
+            gitlink.getValue().copyRawTo(raw, 0);
+            out.write(raw);
+        }
+    }
+
+    private static void writeCommit(DataOutputStream out, ObjectId commit, int set) throws IOException {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        out.writeByte(COMMIT);
+        commit.copyRawTo(raw, 0);
+        out.write(raw);
+        out.writeInt(set);
+    }
+}
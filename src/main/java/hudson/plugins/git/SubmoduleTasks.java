@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import hudson.model.TaskListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs git commands in submodules concurrently and reports how long each took.
+ * <p/>
+ * The number of submodule commands running at the same time is bounded per node, whatever the number of builds, by
+ * the <tt>hudson.plugins.git.GitAPI.submoduleThreads</tt> system property (4 by default). Tasks may submit more
+ * tasks, typically for the nested submodules when updating recursively, without holding a thread while those run.
+ * The first failure is thrown by {@link #await()} once all the submitted tasks are done.
+ */
+final class SubmoduleTasks {
+    /**
+     * Maximum number of submodule commands running at the same time on this node.
+     */
+    static final int THREADS = Math.max(1, Integer.getInteger(GitAPI.class.getName() + ".submoduleThreads", 4));
+
+    private static final Semaphore PERMITS = new Semaphore(THREADS, true);
+
+    /**
+     * Work done in one submodule.
+     */
+    interface Task {
+        /**
+         * @param tasks where to submit follow-up tasks.
+         * @throws GitException if the git command fails.
+         */
+        void run(SubmoduleTasks tasks) throws GitException;
+    }
+
+    private final TaskListener listener;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    private int pending;
+    private GitException failure;
+
+    SubmoduleTasks(TaskListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the task as soon as a thread and a permit of the node are free.
+     *
+     * @param description what the task does, for the timing report.
+     * @param task the task.
+     */
+    void submit(final String description, final Task task) {
+        synchronized (this) {
+            pending++;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                boolean acquired = false;
+                try {
+                    PERMITS.acquire();
+                    acquired = true;
+                    long start = System.currentTimeMillis();
+                    task.run(SubmoduleTasks.this);
+                    listener.getLogger().println(description + " (" + (System.currentTimeMillis() - start) + " ms)");
+                } catch (InterruptedException e) {
+                    failed(new GitException(description + " interrupted", e));
+                } catch (GitException e) {
+                    failed(e);
+                } catch (RuntimeException e) {
+                    failed(new GitException(description + " failed", e));
+                } finally {
+                    if (acquired) {
+                        PERMITS.release();
+                    }
+                    done();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for all the tasks, including those they submitted, and releases the threads.
+     *
+     * @throws GitException the first failure of a task.
+     */
+    void await() throws GitException {
+        try {
+            synchronized (this) {
+                while (pending > 0) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitException("Interrupted while waiting for the submodules", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private synchronized void failed(GitException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private synchronized void done() {
+        pending--;
+        if (pending == 0) {
+            notifyAll();
+        }
+    }
+}
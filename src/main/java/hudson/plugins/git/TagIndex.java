@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Index of the tags of a repository by the commit they point at.
+ * <p/>
+ * Annotated tags are peeled, so that they are found by the commit they tag rather than by the tag object. Every
+ * {@link #refresh(Repository)} lists the tag refs, which JGit only re-reads when the ref files changed, and only
+ * peels the tags which are new or were moved since the previous refresh.
+ */
+final class TagIndex {
+    /**
+     * Object id of every tag ref, by tag name (without refs/tags/).
+     */
+    private Map<String, ObjectId> tags = Collections.emptyMap();
+
+    /**
+     * Peeled object, usually a commit, of every tag by tag name.
+     */
+    private Map<String, ObjectId> peeled = Collections.emptyMap();
+
+    private Map<ObjectId, List<String>> byCommit = Collections.emptyMap();
+
+    /**
+     * Brings the index up to date with the refs of the repository.
+     *
+     * @param db repository.
+     * @throws IOException if the refs cannot be read.
+     */
+    synchronized void refresh(Repository db) throws IOException {
+        Map<String, Ref> refs = db.getRefDatabase().getRefs(Constants.R_TAGS);
+        if (isUpToDate(refs)) {
+            return;
+        }
+        Map<String, ObjectId> newTags = new HashMap<String, ObjectId>(refs.size() * 4 / 3 + 1);
+        Map<String, ObjectId> newPeeled = new HashMap<String, ObjectId>(refs.size() * 4 / 3 + 1);
+        Map<ObjectId, List<String>> newByCommit = new HashMap<ObjectId, List<String>>();
+        for (Map.Entry<String, Ref> entry : refs.entrySet()) {
+            String name = entry.getKey();
+            Ref ref = entry.getValue();
+            ObjectId id = ref.getObjectId();
+            if (id == null) {
+                continue;
+            }
+            newTags.put(name, id);
+
+            ObjectId commit;
+            if (id.equals(tags.get(name))) {
+                commit = peeled.get(name);
+            } else {
+                commit = peel(db, ref);
+            }
+            newPeeled.put(name, commit);
+            List<String> names = newByCommit.get(commit);
+            if (names == null) {
+                names = new ArrayList<String>(1);
+                newByCommit.put(commit, names);
+            }
+            names.add(name);
+        }
+        tags = newTags;
+        peeled = newPeeled;
+        byCommit = newByCommit;
+    }
+
+    /**
+     * @param name tag name.
+     * @return true if the tag exists.
+     */
+    synchronized boolean contains(String name) {
+        return tags.containsKey(name);
+    }
+
+    /**
+     * Lists the tags matching the given pattern, with the same wildcards as <tt>git tag -l</tt>.
+     *
+     * @param pattern pattern, null or empty for all tags.
+     * @return matching tag names.
+     */
+    synchronized Set<String> getNames(String pattern) {
+        if (pattern == null || pattern.length() == 0) {
+            return new HashSet<String>(tags.keySet());
+        }
+        if (pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0) {
+            return tags.containsKey(pattern) ? Collections.singleton(pattern) : Collections.<String>emptySet();
+        }
+        Set<String> result = new HashSet<String>();
+        for (String name : tags.keySet()) {
+            if (SelectorUtils.match(pattern, name)) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lists the tags pointing at the given commit, directly or through an annotated tag.
+     *
+     * @param commit commit.
+     * @return tags.
+     */
+    synchronized List<Tag> getTagsOn(ObjectId commit) {
+        List<String> names = byCommit.get(commit);
+        if (names == null) {
+            return new ArrayList<Tag>();
+        }
+        List<Tag> result = new ArrayList<Tag>(names.size());
+        for (String name : names) {
+            Tag tag = new Tag(name, tags.get(name));
+            tag.setCommitSHA1(commit.name());
+            result.add(tag);
+        }
+        return result;
+    }
+
+    private boolean isUpToDate(Map<String, Ref> refs) {
+        if (refs.size() != tags.size()) {
+            return false;
+        }
+        for (Map.Entry<String, Ref> entry : refs.entrySet()) {
+            ObjectId id = entry.getValue().getObjectId();
+            if (id == null || !id.equals(tags.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ObjectId peel(Repository db, Ref ref) {
+        Ref peeledRef = ref.isPeeled() ? ref : db.peel(ref);
+        ObjectId target = peeledRef.getPeeledObjectId();
+        // Lightweight tags are not peeled
+        return target != null ? target : ref.getObjectId();
+    }
+}
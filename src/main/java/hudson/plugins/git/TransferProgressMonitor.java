@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import hudson.model.TaskListener;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * Reports the progress of an in-process fetch or push to a {@link TaskListener} and counts the objects transferred.
+ * <p/>
+ * The transfer is cancelled, without any process to kill, when {@link #cancel()} is called, when the thread which
+ * created the monitor is interrupted or when the timeout elapses. A transfer started by {@link #run(Callable)} is
+ * given up even if it stalls without reporting any progress.
+ */
+final class TransferProgressMonitor implements ProgressMonitor {
+    /**
+     * Minimum interval between two progress lines of the same task.
+     */
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Interval at which the thread waiting for a transfer checks whether it is cancelled.
+     */
+    private static final long CANCEL_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private final TaskListener listener;
+    private final Thread caller;
+    private final long deadline;
+    private volatile boolean cancelled;
+    private volatile boolean timedOut;
+
+    private String task;
+    private int totalWork;
+    private int done;
+    private long lastReport;
+    private boolean countObjects;
+    private long objects;
+    private long bytes = -1;
+
+    /**
+     * @param listener listener the progress is reported to.
+     * @param timeout seconds after which the transfer is cancelled, 0 for none.
+     */
+    TransferProgressMonitor(TaskListener listener, int timeout) {
+        this.listener = listener;
+        // JGit calls isCancelled() from the thread of the transfer, which is not always the one to interrupt
+        this.caller = Thread.currentThread();
+        this.deadline = timeout > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout) : 0;
+    }
+
+    public void start(int totalTasks) {
+    }
+
+    public void beginTask(String title, int totalWork) {
+        this.task = title;
+        this.totalWork = totalWork;
+        this.done = 0;
+        this.lastReport = System.nanoTime();
+        // "Receiving objects" when fetching, "Writing objects" when pushing
+        this.countObjects = title.equals("Receiving objects") || title.equals("Writing objects");
+    }
+
+    public void update(int completed) {
+        done += completed;
+        if (countObjects) {
+            objects += completed;
+        }
+        long now = System.nanoTime();
+        if (now - lastReport >= REPORT_INTERVAL) {
+            lastReport = now;
+            report();
+        }
+    }
+
+    public void endTask() {
+        if (task != null) {
+            report();
+        }
+        task = null;
+    }
+
+    public boolean isCancelled() {
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            timedOut = true;
+        }
+        return cancelled || timedOut || caller.isInterrupted();
+    }
+
+    /**
+     * Runs the transfer on its own thread and waits for it until it completes or is cancelled. A cancelled transfer
+     * stops at its next progress update; one blocked on a read which never returns is left behind, so that the
+     * caller is not blocked with it.
+     *
+     * @param transfer the transfer, which reports its progress to this monitor.
+     * @return the result of the transfer.
+     * @throws CancellationException if the transfer was cancelled or timed out.
+     * @throws InterruptedException if the caller was interrupted, which cancels the transfer.
+     * @throws Exception if the transfer failed.
+     */
+    <T> T run(Callable<T> transfer) throws Exception {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+        FutureTask<T> task = new FutureTask<T>(transfer);
+        Thread thread = new Thread(task, "git transfer for " + caller.getName());
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            while (true) {
+                try {
+                    return task.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (isCancelled()) {
+                        throw new CancellationException();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            // Keep the caller interrupted, as it was before waiting
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw (Error) e.getCause();
+        } finally {
+            if (!task.isDone()) {
+                // Interruptible channels give up at once, the others at their next progress update
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Cancels the transfer: it stops at its next progress update, and {@link #run(Callable)} stops waiting for it.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns true if the transfer was cancelled because the timeout elapsed.
+     *
+     * @return true if the transfer timed out.
+     */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Returns the number of objects received or sent.
+     *
+     * @return the number of objects transferred.
+     */
+    long getObjects() {
+        return objects;
+    }
+
+    /**
+     * Returns the number of bytes transferred, or -1 if unknown.
+     *
+     * @return the number of bytes transferred.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    private void report() {
+        if (totalWork == UNKNOWN) {
+            listener.getLogger().println(task + ": " + done);
+        } else {
+            listener.getLogger().println(task + ": " + (totalWork > 0 ? done * 100L / totalWork : 100) + "% ("
+                + done + "/" + totalWork + ")");
+        }
+    }
+}
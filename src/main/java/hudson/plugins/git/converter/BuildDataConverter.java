@@ -0,0 +1,84 @@
+package hudson.plugins.git.converter;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.core.util.Base64Encoder;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+import hudson.plugins.git.util.BuildData;
+import hudson.plugins.git.util.BuildDataFormat;
+import hudson.util.RobustReflectionConverter;
+import java.io.IOException;
+
+/**
+ * Converter for {@link BuildData}. Writes the persistent form of the build data, which is a delta against the
+ * build data of a previous build where possible, in the compact {@link BuildDataFormat}. Build records written by
+ * earlier versions hold the full branch history as XML and are read by reflection; they are converted the next
+ * time the build is saved.
+ * <p/>
+ * Set the <tt>hudson.plugins.git.converter.BuildDataConverter.writeXml</tt> system property to keep writing XML,
+ * e.g. to be able to go back to an earlier version of the plugin.
+ */
+public class BuildDataConverter extends RobustReflectionConverter implements LegacyConverter<BuildData> {
+    private static final String PACKED_NODE_KEY = "packed";
+
+    public static boolean WRITE_XML = Boolean.getBoolean(BuildDataConverter.class.getName() + ".writeXml");
+
+    private Base64Encoder base64 = new Base64Encoder();
+
+    public BuildDataConverter(Mapper mapper, ReflectionProvider provider) {
+        super(mapper, provider);
+    }
+
+    public boolean canConvert(Class type) {
+        return BuildData.class == type;
+    }
+
+    @Override
+    public void marshal(Object original, HierarchicalStreamWriter writer, MarshallingContext context) {
+        BuildData data = ((BuildData) original).toPersistentForm();
+        if (WRITE_XML) {
+            super.marshal(data, writer, context);
+            return;
+        }
+        try {
+            writer.startNode(PACKED_NODE_KEY);
+            writer.setValue(base64.encode(BuildDataFormat.write(data)));
+            writer.endNode();
+        } catch (IOException e) {
+            throw new ConversionException("Marshal failed", e);
+        }
+    }
+
+    @Override
+    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        if (isLegacyNode(reader, context)) {
+            return legacyUnmarshal(reader, context);
+        }
+        reader.moveDown();
+        byte[] packed = base64.decode(reader.getValue());
+        reader.moveUp();
+        try {
+            return BuildDataFormat.read(packed);
+        } catch (IOException e) {
+            throw new ConversionException("Unmarshal failed", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isLegacyNode(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        return !reader.hasMoreChildren() || !PACKED_NODE_KEY.equals(reader.peekNextChild());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BuildData legacyUnmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        return (BuildData) super.unmarshal(reader, context);
+    }
+}
@@ -31,6 +31,10 @@ import org.eclipse.jgit.lib.ObjectId;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
+/**
+ * A build of a {@link Revision}. Once saved into {@link BuildData}, instances are shared by the build data of the
+ * following builds and must not be modified.
+ */
 @ExportedBean(defaultVisibility = 999)
 public class Build implements Serializable, Cloneable {
     private static final long serialVersionUID = 1L;
@@ -48,12 +52,18 @@ public class Build implements Serializable, Cloneable {
     public int hudsonBuildNumber;
     public Result hudsonBuildResult;
 
+    /**
+     * Time the build was recorded, 0 if unknown.
+     */
+    public long timestamp;
+
     // TODO: We don't currently store the result correctly.
 
     public Build(Revision revision, int buildNumber, Result result) {
         this.revision = revision;
         this.hudsonBuildNumber = buildNumber;
         this.hudsonBuildResult = result;
+        this.timestamp = System.currentTimeMillis();
     }
 
     public ObjectId getSHA1() {
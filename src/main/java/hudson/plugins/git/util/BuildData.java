@@ -25,15 +25,26 @@
 package hudson.plugins.git.util;
 
 import hudson.model.AbstractBuild;
-import hudson.model.Action;
 import hudson.model.Api;
+import hudson.model.Run;
+import hudson.model.RunAction;
 import hudson.plugins.git.Branch;
 import hudson.plugins.git.Revision;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.eclipse.jgit.lib.ObjectId;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
@@ -45,11 +56,25 @@ import static hudson.Util.fixNull;
  * <p/>
  * This object is added to {@link AbstractBuild#getActions()} and
  * remember the Git related information of that build.
+ * <p/>
+ * Copies are copy-on-write: {@link #clone()} shares {@link #buildsByBranchName} and the {@link Build}s in it with
+ * the original, and the map is only copied on the first {@link #saveBuild(Build)}. A copy made with
+ * {@link #deltaCopy(int)} is persisted as a delta, i.e. only the branches saved since the copy was taken are written
+ * to build.xml together with the number of the build holding the rest. The full view is restored lazily from that
+ * build on first access, see {@link #resolve(Run)}; the build holding this object is attached to it when it is added
+ * to the build and, for builds read from disk, by {@link BuildDataItemListener}. On disk the data is kept in the compact form of
+ * {@link BuildDataFormat}, whose branch map is decoded on first access as well.
  */
 @ExportedBean(defaultVisibility = 999)
-public class BuildData implements Action, Serializable, Cloneable {
+public class BuildData implements RunAction, Serializable, Cloneable {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Maximum length of a chain of deltas. Every this many builds the full map is written again, so resolving
+     * a build never has to load more than this many previous build records.
+     */
+    public static int MAX_DELTA_DEPTH = Integer.getInteger(BuildData.class.getName() + ".maxDeltaDepth", 20);
+
     /**
      * Map of branch name -> build (Branch name to last built SHA1).
      * <p/>
@@ -64,11 +89,63 @@ public class BuildData implements Action, Serializable, Cloneable {
      */
     public Build lastBuild;
 
+    /**
+     * Number of the build whose {@link BuildData} this one extends, or null if this one holds the full history.
+     */
+    Integer baseBuildNumber;
+
+    /**
+     * Number of deltas between this object and the closest full snapshot.
+     */
+    int deltaDepth;
+
+    /**
+     * Names of the branches saved since this object was copied from its base. Null while a delta read from disk
+     * has not been resolved yet.
+     */
+    private Set<String> changedBranches;
+
+    /**
+     * Branches removed from the base by {@link #prune}. Only set in the persisted form of a delta.
+     */
+    Set<String> removedBranches;
+
+    /**
+     * SHA1s of pruned builds which are still the head of a branch. They keep counting as built, so that pruning
+     * a branch does not trigger a rebuild of it. Dropped once no branch points at them anymore.
+     */
+    Set<ObjectId> prunedRevisions;
+
+    /**
+     * True while {@link #buildsByBranchName} is shared with another copy and must be copied before writing.
+     */
+    private transient boolean shared;
+
+    /**
+     * Build this object is attached to, used to find the base build when resolving a delta.
+     */
+    private transient Run<?, ?> owner;
+
+    /**
+     * Compact form read from disk whose branch map has not been decoded yet, see {@link BuildDataFormat}.
+     */
+    transient byte[] packed;
 
     public String getDisplayName() {
         return "Git Build Data";
     }
 
+    public void onLoad() {
+        // The build is not passed on load, BuildDataItemListener attaches it
+    }
+
+    public void onAttached(Run r) {
+        owner = r;
+    }
+
+    public void onBuildComplete() {
+    }
+
     public String getIconFileName() {
         return "/plugin/git/icons/git-32x32.png";
     }
@@ -100,27 +177,94 @@ public class BuildData implements Action, Serializable, Cloneable {
      */
     public boolean hasBeenBuilt(ObjectId sha1) {
         try {
-            for (Build b : buildsByBranchName.values()) {
+            for (Build b : getBuildsByBranchName().values()) {
                 if (b.revision.getSha1().equals(sha1)) {
                     return true;
                 }
             }
 
-            return false;
+            Set<ObjectId> pruned = prunedRevisions;
+            return pruned != null && pruned.contains(sha1);
         } catch (Exception ex) {
             return false;
         }
     }
 
-    public void saveBuild(Build build) {
+    public synchronized void saveBuild(Build build) {
+        ensureResolved();
+        if (shared) {
+            buildsByBranchName = new HashMap<String, Build>(buildsByBranchName);
+            shared = false;
+        }
         lastBuild = build;
         for (Branch branch : build.revision.getBranches()) {
-            buildsByBranchName.put(fixNull(branch.getName()), build);
+            String branchName = fixNull(branch.getName());
+            buildsByBranchName.put(branchName, build);
+            if (changedBranches != null) {
+                changedBranches.add(branchName);
+            }
         }
     }
 
+    /**
+     * Drops the branches the given retention policy considers stale. The last build is always kept.
+     *
+     * @param branchRevisions heads of all the remote branches, see {@link GitUtils#getAllBranchRevisions()}.
+     * @param retention retention policy.
+     * @param buildNumber number of the current build.
+     * @return number of branches dropped.
+     */
+    public synchronized int prune(Collection<Revision> branchRevisions, BuildDataRetention retention,
+                                  int buildNumber) {
+        ensureResolved();
+        Set<String> heads = new HashSet<String>();
+        Set<ObjectId> headSha1s = new HashSet<ObjectId>();
+        for (Revision revision : branchRevisions) {
+            headSha1s.add(revision.getSha1());
+            for (Branch branch : revision.getBranches()) {
+                heads.add(branch.getName());
+            }
+        }
+        // An empty list rather means the remote branches could not be listed
+        boolean pruneDeleted = retention.isPruneDeletedBranches() && !heads.isEmpty();
+        long now = System.currentTimeMillis();
+
+        List<String> stale = new ArrayList<String>();
+        for (Map.Entry<String, Build> entry : buildsByBranchName.entrySet()) {
+            Build build = entry.getValue();
+            if (build != lastBuild && ((pruneDeleted && !heads.contains(entry.getKey()))
+                || retention.isExpired(build, buildNumber, now))) {
+                stale.add(entry.getKey());
+            }
+        }
+
+        Set<ObjectId> pruned = new HashSet<ObjectId>();
+        if (prunedRevisions != null) {
+            for (ObjectId sha1 : prunedRevisions) {
+                if (headSha1s.contains(sha1)) {
+                    pruned.add(sha1);
+                }
+            }
+        }
+        if (!stale.isEmpty() && shared) {
+            buildsByBranchName = new HashMap<String, Build>(buildsByBranchName);
+            shared = false;
+        }
+        for (String branchName : stale) {
+            Build build = buildsByBranchName.remove(branchName);
+            if (headSha1s.contains(build.getSHA1())) {
+                pruned.add(build.getSHA1());
+            }
+            if (changedBranches != null) {
+                changedBranches.add(branchName);
+            }
+        }
+        prunedRevisions = pruned.isEmpty() ? null : pruned;
+        return stale.size();
+    }
+
     public Build getLastBuildOfBranch(String branch) {
-        return buildsByBranchName.get(branch);
+        return getBuildsByBranchName().get(branch);
     }
 
     @Exported
@@ -130,11 +274,112 @@ public class BuildData implements Action, Serializable, Cloneable {
 
     @Exported
     public Map<String, Build> getBuildsByBranchName() {
+        ensureResolved();
         return buildsByBranchName;
     }
 
+    /**
+     * Returns true if this object is persisted as a delta against the given build.
+     *
+     * @param buildNumber number of the potential base build.
+     * @return true if this object depends on the data of that build.
+     */
+    public boolean isDeltaOf(int buildNumber) {
+        return baseBuildNumber != null && baseBuildNumber == buildNumber;
+    }
+
+    /**
+     * Restores the full view of a delta read from disk by merging it onto the data of its base build.
+     *
+     * @param owner the build this object is attached to.
+     */
+    public synchronized void resolve(Run<?, ?> owner) {
+        ensureUnpacked();
+        if (owner != null) {
+            this.owner = owner;
+        }
+        if (baseBuildNumber == null || changedBranches != null || this.owner == null) {
+            return;
+        }
+        changedBranches = new HashSet<String>(buildsByBranchName.keySet());
+        if (removedBranches != null) {
+            changedBranches.addAll(removedBranches);
+        }
+        BuildData base = getBaseBuildData();
+        if (base == null) {
+            LOGGER.log(Level.WARNING, "Base build #{0} of the Git build data of {1} is not available,"
+                + " using the partial branch history", new Object[]{baseBuildNumber, this.owner});
+            detachFromBase();
+            return;
+        }
+        Map<String, Build> full = new HashMap<String, Build>(base.getBuildsByBranchName());
+        full.putAll(buildsByBranchName);
+        if (removedBranches != null) {
+            full.keySet().removeAll(removedBranches);
+            removedBranches = null;
+        }
+        buildsByBranchName = full;
+    }
+
+    /**
+     * Makes this object hold the full history again, so that it no longer depends on its base build.
+     * The caller is responsible for saving the owning build.
+     */
+    public synchronized void detachFromBase() {
+        ensureResolved();
+        baseBuildNumber = null;
+        deltaDepth = 0;
+        removedBranches = null;
+        changedBranches = new HashSet<String>();
+    }
+
+    /**
+     * Returns the form of this object which is written to disk: a delta against the base build if there is one,
+     * the object itself otherwise.
+     *
+     * @return object to persist.
+     */
+    public synchronized BuildData toPersistentForm() {
+        if (baseBuildNumber == null || changedBranches == null) {
+            return this;
+        }
+        BuildData delta = new BuildData();
+        delta.lastBuild = lastBuild;
+        delta.baseBuildNumber = baseBuildNumber;
+        delta.deltaDepth = deltaDepth;
+        delta.prunedRevisions = prunedRevisions;
+        for (String branchName : changedBranches) {
+            Build build = buildsByBranchName.get(branchName);
+            if (build != null) {
+                delta.buildsByBranchName.put(branchName, build);
+            } else {
+                if (delta.removedBranches == null) {
+                    delta.removedBranches = new HashSet<String>();
+                }
+                delta.removedBranches.add(branchName);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Copy for the next build which is persisted as a delta against the build this object is attached to.
+     *
+     * @param baseBuildNumber number of the build this object is attached to.
+     * @return copy-on-write copy.
+     */
+    public synchronized BuildData deltaCopy(int baseBuildNumber) {
+        BuildData copy = clone();
+        if (deltaDepth < MAX_DELTA_DEPTH) {
+            copy.baseBuildNumber = baseBuildNumber;
+            copy.deltaDepth = deltaDepth + 1;
+        }
+        return copy;
+    }
+
     @Override
-    public BuildData clone() {
+    public synchronized BuildData clone() {
+        ensureResolved();
         BuildData clone;
         try {
             clone = (BuildData) super.clone();
@@ -142,30 +387,13 @@ public class BuildData implements Action, Serializable, Cloneable {
             throw new RuntimeException("Error cloning BuildData", e);
         }
 
-        IdentityHashMap<Build, Build> clonedBuilds = new IdentityHashMap<Build, Build>();
-
-        clone.buildsByBranchName = new HashMap<String, Build>();
-        for (Map.Entry<String, Build> buildByBranchName : buildsByBranchName.entrySet()) {
-            String branchName = buildByBranchName.getKey();
-            if (branchName == null) {
-                branchName = "";
-            }
-            Build build = buildByBranchName.getValue();
-            Build clonedBuild = clonedBuilds.get(build);
-            if (clonedBuild == null) {
-                clonedBuild = build.clone();
-                clonedBuilds.put(build, clonedBuild);
-            }
-            clone.buildsByBranchName.put(branchName, clonedBuild);
-        }
-
-        if (lastBuild != null) {
-            clone.lastBuild = clonedBuilds.get(lastBuild);
-            if (clone.lastBuild == null) {
-                clone.lastBuild = lastBuild.clone();
-                clonedBuilds.put(lastBuild, clone.lastBuild);
-            }
-        }
+        // Builds are never modified once saved, so both copies share them until one of them saves a new one
+        shared = true;
+        clone.shared = true;
+        clone.owner = null;
+        clone.baseBuildNumber = null;
+        clone.deltaDepth = 0;
+        clone.changedBranches = new HashSet<String>();
 
         return clone;
     }
@@ -176,6 +404,62 @@ public class BuildData implements Action, Serializable, Cloneable {
 
     @Override
     public String toString() {
+        ensureUnpacked();
         return super.toString() + "[buildsByBranchName=" + buildsByBranchName + ",lastBuild=" + lastBuild + "]";
     }
+
+    private synchronized void ensureUnpacked() {
+        if (packed == null) {
+            return;
+        }
+        try {
+            BuildDataFormat.readBody(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Corrupted Git build data, the branch history is lost", e);
+        }
+        packed = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ensureUnpacked();
+        out.defaultWriteObject();
+    }
+
+    private void ensureResolved() {
+        ensureUnpacked();
+        if (baseBuildNumber == null || changedBranches != null) {
+            return;
+        }
+        Run<?, ?> run = owner;
+        if (run == null) {
+            // Rendered or exported directly from the build page, without going through GitSCM
+            StaplerRequest request = Stapler.getCurrentRequest();
+            if (request != null) {
+                run = request.findAncestorObject(Run.class);
+            }
+        }
+        if (run == null) {
+            // Attached on load by BuildDataItemListener, so only a build read outside of Hudson gets there
+            LOGGER.log(Level.WARNING, "The Git build data extending build #{0} is not attached to its build,"
+                + " using the partial branch history", baseBuildNumber);
+        }
+        resolve(run);
+    }
+
+    private BuildData getBaseBuildData() {
+        if (owner == null) {
+            return null;
+        }
+        Run<?, ?> base = owner.getParent().getBuildByNumber(baseBuildNumber);
+        if (base == null) {
+            return null;
+        }
+        BuildData data = base.getAction(BuildData.class);
+        if (data != null) {
+            data.resolve(base);
+        }
+        return data;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BuildData.class.getName());
 }
@@ -0,0 +1,326 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git.util;
+
+import hudson.model.Result;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Compact binary form of {@link BuildData}.
+ * <p/>
+ * SHA1s are written as 20 raw bytes and strings (branch names and results) once into a string table. Every
+ * {@link Build} is written once, however many branches point at it. The header holds the delta information and
+ * the last build and is read eagerly, the branch map is only decoded on first access, see
+ * {@link BuildData#getBuildsByBranchName()}.
+ * <pre>
+ * header: version, base build number (-1 if none), delta depth, last build (inline strings)
+ * body:   string table, build table, branch name -> build index entries (index 0 is the last build),
+ *         branches removed from the base of a delta, pruned SHA1s (since version 2)
+ * </pre>
+ */
+public final class BuildDataFormat {
+    private static final int VERSION = 2;
+
+    private static final int SHA1_NULL = 0;
+    private static final int SHA1_SAME_AS_REVISION = 1;
+    private static final int SHA1_RAW = 2;
+
+    private BuildDataFormat() {
+    }
+
+    /**
+     * Encodes the given build data.
+     *
+     * @param data build data, as returned by {@link BuildData#toPersistentForm()}.
+     * @return the encoded form.
+     * @throws IOException never for in-memory streams.
+     */
+    public static byte[] write(BuildData data) throws IOException {
+        if (data.packed != null) {
+            // Never touched since it was read, write back the same bytes
+            return data.packed;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeInt(data.baseBuildNumber == null ? -1 : data.baseBuildNumber);
+        out.writeInt(data.deltaDepth);
+        out.writeBoolean(data.lastBuild != null);
+        if (data.lastBuild != null) {
+            writeBuild(out, data.lastBuild, null);
+        }
+
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        Map<Build, Integer> builds = new IdentityHashMap<Build, Integer>();
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        List<Build> buildTable = new ArrayList<Build>();
+        for (Build build : data.buildsByBranchName.values()) {
+            if (build != data.lastBuild && !builds.containsKey(build)) {
+                builds.put(build, buildTable.size() + 1);
+                buildTable.add(build);
+            }
+        }
+        body.writeInt(buildTable.size());
+        for (Build build : buildTable) {
+            writeBuild(body, build, strings);
+        }
+        body.writeInt(data.buildsByBranchName.size());
+        for (Map.Entry<String, Build> entry : data.buildsByBranchName.entrySet()) {
+            writeString(body, entry.getKey(), strings);
+            body.writeInt(entry.getValue() == data.lastBuild ? 0 : builds.get(entry.getValue()));
+        }
+        writeStrings(body, data.removedBranches, strings);
+        Collection<ObjectId> pruned = data.prunedRevisions;
+        body.writeInt(pruned == null ? 0 : pruned.size());
+        if (pruned != null) {
+            for (ObjectId sha1 : pruned) {
+                writeSha1(body, sha1, null);
+            }
+        }
+        body.flush();
+
+        out.writeInt(strings.size());
+        for (String string : strings.keySet()) {
+            out.writeUTF(string);
+        }
+        bodyBytes.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the header of the given data. The branch map is decoded lazily by {@link #readBody(BuildData)}.
+     *
+     * @param packed encoded form.
+     * @return build data.
+     * @throws IOException if the data is corrupted.
+     */
+    public static BuildData read(byte[] packed) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported build data format version " + version);
+        }
+        BuildData data = new BuildData();
+        int base = in.readInt();
+        data.baseBuildNumber = base < 0 ? null : base;
+        data.deltaDepth = in.readInt();
+        data.lastBuild = in.readBoolean() ? readBuild(in, null, version) : null;
+        data.packed = packed;
+        return data;
+    }
+
+    /**
+     * Decodes the branch map of data returned by {@link #read(byte[])}.
+     *
+     * @param data build data.
+     * @throws IOException if the data is corrupted.
+     */
+    static void readBody(BuildData data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.packed));
+        int version = in.readUnsignedByte();
+        in.readInt();
+        in.readInt();
+        if (in.readBoolean()) {
+            readBuild(in, null, version);
+        }
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        Build[] builds = new Build[in.readInt() + 1];
+        builds[0] = data.lastBuild;
+        for (int i = 1; i < builds.length; i++) {
+            builds[i] = readBuild(in, strings, version);
+        }
+        int entries = in.readInt();
+        Map<String, Build> buildsByBranchName = new HashMap<String, Build>(entries * 4 / 3 + 1);
+        for (int i = 0; i < entries; i++) {
+            String branchName = readString(in, strings);
+            buildsByBranchName.put(branchName, builds[in.readInt()]);
+        }
+        data.buildsByBranchName = buildsByBranchName;
+        if (version < 2) {
+            return;
+        }
+        data.removedBranches = readStrings(in, strings);
+        int pruned = in.readInt();
+        if (pruned > 0) {
+            data.prunedRevisions = new HashSet<ObjectId>();
+            for (int i = 0; i < pruned; i++) {
+                data.prunedRevisions.add(readSha1(in, null));
+            }
+        }
+    }
+
+    private static void writeBuild(DataOutput out, Build build, Map<String, Integer> strings) throws IOException {
+        writeRevision(out, build.revision, strings);
+        out.writeBoolean(build.mergeRevision != null);
+        if (build.mergeRevision != null) {
+            writeRevision(out, build.mergeRevision, strings);
+        }
+        out.writeInt(build.hudsonBuildNumber);
+        writeString(out, build.hudsonBuildResult == null ? null : build.hudsonBuildResult.toString(), strings);
+        out.writeLong(build.timestamp);
+    }
+
+    private static Build readBuild(DataInput in, String[] strings, int version) throws IOException {
+        Revision revision = readRevision(in, strings);
+        Revision mergeRevision = in.readBoolean() ? readRevision(in, strings) : null;
+        int number = in.readInt();
+        String result = readString(in, strings);
+        Build build = new Build(revision, number, result == null ? null : Result.fromString(result));
+        build.mergeRevision = mergeRevision;
+        build.timestamp = version < 2 ? 0 : in.readLong();
+        return build;
+    }
+
+    private static void writeRevision(DataOutput out, Revision revision, Map<String, Integer> strings)
+        throws IOException {
+        ObjectId sha1 = revision.getSha1();
+        writeSha1(out, sha1, null);
+        Collection<Branch> branches = revision.getBranches();
+        out.writeInt(branches == null ? 0 : branches.size());
+        if (branches != null) {
+            for (Branch branch : branches) {
+                writeString(out, branch.getName(), strings);
+                writeSha1(out, branch.getSHA1(), sha1);
+            }
+        }
+    }
+
+    private static Revision readRevision(DataInput in, String[] strings) throws IOException {
+        ObjectId sha1 = readSha1(in, null);
+        int count = in.readInt();
+        List<Branch> branches = new ArrayList<Branch>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in, strings);
+            branches.add(new Branch(name, readSha1(in, sha1)));
+        }
+        return new Revision(sha1, branches);
+    }
+
+    private static void writeSha1(DataOutput out, ObjectId sha1, ObjectId revisionSha1) throws IOException {
+        if (sha1 == null) {
+            out.writeByte(SHA1_NULL);
+        } else if (revisionSha1 != null && revisionSha1.equals(sha1)) {
+            out.writeByte(SHA1_SAME_AS_REVISION);
+        } else {
+            out.writeByte(SHA1_RAW);
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            sha1.copyRawTo(raw, 0);
+            out.write(raw);
+        }
+    }
+
+    private static ObjectId readSha1(DataInput in, ObjectId revisionSha1) throws IOException {
+        switch (in.readUnsignedByte()) {
+            case SHA1_NULL:
+                return null;
+            case SHA1_SAME_AS_REVISION:
+                return revisionSha1;
+            case SHA1_RAW:
+                byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+                in.readFully(raw);
+                return ObjectId.fromRaw(raw);
+            default:
+                throw new IOException("Corrupted build data");
+        }
+    }
+
+    /**
+     * Writes a string into the string table, or inline when there is no table (header).
+     */
+    private static void writeString(DataOutput out, String string, Map<String, Integer> strings)
+        throws IOException {
+        if (strings == null) {
+            out.writeBoolean(string != null);
+            if (string != null) {
+                out.writeUTF(string);
+            }
+            return;
+        }
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        out.writeInt(index);
+    }
+
+    private static void writeStrings(DataOutput out, Collection<String> values, Map<String, Integer> strings)
+        throws IOException {
+        out.writeInt(values == null ? 0 : values.size());
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value, strings);
+            }
+        }
+    }
+
+    private static Set<String> readStrings(DataInput in, String[] strings) throws IOException {
+        int count = in.readInt();
+        if (count == 0) {
+            return null;
+        }
+        Set<String> values = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in, strings));
+        }
+        return values;
+    }
+
+    private static String readString(DataInput in, String[] strings) throws IOException {
+        if (strings == null) {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+        int index = in.readInt();
+        return index < 0 ? null : strings[index];
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git.util;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers, per job, the number of the latest build which has {@link BuildData}, so that it can be found without
+ * loading the records of the builds in between.
+ * <p/>
+ * The index is filled as builds get their {@link BuildData} and when the history of a job has been walked once.
+ * A job without entry is simply looked up the slow way.
+ */
+public final class BuildDataIndex {
+    private static final Map<Job<?, ?>, Integer> LATEST =
+        Collections.synchronizedMap(new WeakHashMap<Job<?, ?>, Integer>());
+
+    private BuildDataIndex() {
+    }
+
+    /**
+     * Records that the given build has {@link BuildData}.
+     *
+     * @param build build.
+     */
+    public static void record(Run<?, ?> build) {
+        Job<?, ?> job = build.getParent();
+        synchronized (LATEST) {
+            Integer latest = LATEST.get(job);
+            if (latest == null || latest < build.getNumber()) {
+                LATEST.put(job, build.getNumber());
+            }
+        }
+    }
+
+    /**
+     * Forgets the given build if it is the indexed one, e.g. because it is being deleted.
+     *
+     * @param build build.
+     */
+    public static void forget(Run<?, ?> build) {
+        forget(build.getParent(), build.getNumber());
+    }
+
+    /**
+     * Returns the build holding the latest {@link BuildData} recorded at or before the given build.
+     *
+     * @param build build to start from.
+     * @return the build, or null if the index cannot answer and the history has to be walked.
+     */
+    public static Run<?, ?> lookup(Run<?, ?> build) {
+        Integer latest = LATEST.get(build.getParent());
+        if (latest == null || latest > build.getNumber()) {
+            return null;
+        }
+        Run<?, ?> candidate = latest == build.getNumber() ? build : build.getParent().getBuildByNumber(latest);
+        if (candidate == null || candidate.getAction(BuildData.class) == null) {
+            // Stale entry, e.g. the build was removed from disk
+            forget(build.getParent(), latest);
+            return null;
+        }
+        return candidate;
+    }
+
+    /**
+     * Returns true if a walk from the given build covers the whole history of its job, so its result may be
+     * recorded.
+     *
+     * @param build build the walk started from.
+     * @return true if the build is the last one of its job.
+     */
+    public static boolean isLatest(Run<?, ?> build) {
+        Run<?, ?> last = build.getParent().getLastBuild();
+        return last == null || last.getNumber() <= build.getNumber();
+    }
+
+    private static void forget(Job<?, ?> job, int number) {
+        synchronized (LATEST) {
+            Integer latest = LATEST.get(job);
+            if (latest != null && latest == number) {
+                LATEST.remove(job);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git.util;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retention policy for the branch history kept in {@link BuildData}, see {@link BuildData#prune}.
+ */
+public class BuildDataRetention implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean pruneDeletedBranches;
+    private final int maxAgeDays;
+    private final int maxAgeBuilds;
+
+    /**
+     * @param pruneDeletedBranches drop branches which no longer exist in the remote repositories.
+     * @param maxAgeDays drop branches which have not been built for that many days, 0 to disable.
+     * @param maxAgeBuilds drop branches which have not been built for that many builds, 0 to disable.
+     */
+    public BuildDataRetention(boolean pruneDeletedBranches, int maxAgeDays, int maxAgeBuilds) {
+        this.pruneDeletedBranches = pruneDeletedBranches;
+        this.maxAgeDays = Math.max(0, maxAgeDays);
+        this.maxAgeBuilds = Math.max(0, maxAgeBuilds);
+    }
+
+    public boolean isPruneDeletedBranches() {
+        return pruneDeletedBranches;
+    }
+
+    public int getMaxAgeDays() {
+        return maxAgeDays;
+    }
+
+    public int getMaxAgeBuilds() {
+        return maxAgeBuilds;
+    }
+
+    /**
+     * @return this policy, keeping the branches which no longer exist in the remote repositories.
+     */
+    public BuildDataRetention withoutDeletedBranches() {
+        return new BuildDataRetention(false, maxAgeDays, maxAgeBuilds);
+    }
+
+    /**
+     * @return true if this policy drops anything at all.
+     */
+    public boolean isEnabled() {
+        return pruneDeletedBranches || maxAgeDays > 0 || maxAgeBuilds > 0;
+    }
+
+    /**
+     * Returns true if the given build is too old to be kept.
+     *
+     * @param build build of a branch.
+     * @param buildNumber number of the current build.
+     * @param now current time.
+     * @return true if expired.
+     */
+    public boolean isExpired(Build build, int buildNumber, long now) {
+        if (maxAgeBuilds > 0 && buildNumber - build.hudsonBuildNumber > maxAgeBuilds) {
+            return true;
+        }
+        // Builds recorded by earlier versions have no timestamp and are only expired by number
+        return maxAgeDays > 0 && build.timestamp > 0 && now - build.timestamp > TimeUnit.DAYS.toMillis(maxAgeDays);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git.util;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the {@link BuildDataIndex} up to date and the {@link BuildData} delta chain consistent when builds are
+ * deleted: the next build whose data is a delta against the deleted build is rewritten with its full branch history.
+ */
+@Extension
+public class BuildDataRunListener extends RunListener<Run> {
+
+    public BuildDataRunListener() {
+        super(Run.class);
+    }
+
+    @Override
+    public void onCompleted(Run r, TaskListener listener) {
+        if (r.getAction(BuildData.class) != null) {
+            BuildDataIndex.record(r);
+        }
+    }
+
+    @Override
+    public void onDeleted(Run r) {
+        if (r.getAction(BuildData.class) == null) {
+            return;
+        }
+        BuildDataIndex.forget(r);
+        for (Run next = r.getNextBuild(); next != null; next = next.getNextBuild()) {
+            BuildData data = (BuildData) next.getAction(BuildData.class);
+            if (data == null) {
+                continue;
+            }
+            if (data.isDeltaOf(r.getNumber())) {
+                data.resolve(next);
+                data.detachFromBase();
+                try {
+                    next.save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save the Git build data of " + next, e);
+                }
+            }
+            break;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BuildDataRunListener.class.getName());
+}
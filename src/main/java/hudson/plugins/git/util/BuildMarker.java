@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git.util;
+
+import hudson.model.Result;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.IGitAPI;
+import java.io.Serializable;
+
+/**
+ * Marks the commit a build checked out in the workspace repository, e.g. <tt>hudson-job-12</tt>.
+ * <p/>
+ * By default every build creates an annotated tag. With {@link #isNotes()} the marker is appended as a line to the
+ * git note of the commit in the {@link GitConstants#INTERNAL_NOTES_REF} notes ref instead, so that all builds
+ * share a single ref rather than adding a tag each.
+ */
+public class BuildMarker implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final String comment;
+    private final boolean notes;
+
+    /**
+     * @param projectName name of the job.
+     * @param buildNumber number of the build.
+     * @param notes true to record the marker as a git note rather than a tag.
+     */
+    public BuildMarker(String projectName, int buildNumber, boolean notes) {
+        this.name = new StringBuilder()
+            .append(GitConstants.INTERNAL_TAG_NAME_PREFIX)
+            .append(GitConstants.HYPHEN_SYMBOL)
+            .append(projectName)
+            .append(GitConstants.HYPHEN_SYMBOL)
+            .append(buildNumber)
+            .toString();
+        this.comment = GitConstants.INTERNAL_TAG_COMMENT_PREFIX + buildNumber;
+        this.notes = notes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isNotes() {
+        return notes;
+    }
+
+    /**
+     * Marks HEAD as built.
+     *
+     * @param git git.
+     * @throws GitException if the marker cannot be recorded.
+     */
+    public void record(IGitAPI git) throws GitException {
+        if (notes) {
+            git.appendNote(name, GitConstants.INTERNAL_NOTES_REF);
+        } else {
+            git.tag(name, comment);
+        }
+    }
+
+    /**
+     * Marks HEAD with the result of the build. The tag of {@link #record(IGitAPI)} is replaced by one with the
+     * result in its name, a note gets a line added.
+     *
+     * @param git git.
+     * @param result result of the build.
+     * @return name of the marker.
+     * @throws GitException if the marker cannot be recorded.
+     */
+    public String recordResult(IGitAPI git, Result result) throws GitException {
+        String resultName = name + GitConstants.HYPHEN_SYMBOL + result;
+        if (notes) {
+            git.appendNote(resultName, GitConstants.INTERNAL_NOTES_REF);
+        } else {
+            git.deleteTag(name);
+            git.tag(resultName, comment);
+        }
+        return resultName;
+    }
+}
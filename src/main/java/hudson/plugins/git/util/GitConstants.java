@@ -41,4 +41,5 @@ public class GitConstants {
     public static final String INTERNAL_TAG_COMMENT_PREFIX = "Hudson Build #";
     public static final String HYPHEN_SYMBOL = "-";
     public static final String INTERNAL_TAG_NAME_PREFIX = "hudson";
+    public static final String INTERNAL_NOTES_REF = "hudson";
 }
@@ -0,0 +1,567 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.util.ArgumentListBuilder;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RemoteConfig;
+
+/**
+ * Tests for {@link GitAPI}.
+ */
+public class GitAPITest extends AbstractGitTestCase {
+
+    public void testGetBranchesContaining() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        String first = git.revParse("HEAD").name();
+        git.branch("old");
+        commit("commitFile2", johnDoe, "Commit number 2");
+        String second = git.revParse("HEAD").name();
+        git.launchCommand("checkout", "-b", "feature");
+        commit("commitFile3", johnDoe, "Commit number 3");
+        String third = git.revParse("HEAD").name();
+        git.launchCommand("checkout", "master");
+        git.launchCommand("merge", "--no-ff", "-m", "Merge feature", "feature");
+
+        assertBranchesContaining(first, "feature", "master", "old");
+        assertBranchesContaining(second, "feature", "master");
+        assertBranchesContaining(third, "feature", "master");
+        assertBranchesContaining(git.revParse("HEAD").name(), "master");
+    }
+
+    public void testTagIndex() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        git.tag("annotated", "Annotated tag");
+        git.launchCommand("tag", "lightweight");
+        commit("commitFile2", johnDoe, "Commit number 2");
+
+        Set<String> onFirst = new TreeSet<String>();
+        for (Tag tag : git.getTagsOnCommit("HEAD^")) {
+            onFirst.add(tag.getName());
+            assertEquals(git.revParse("HEAD^").name(), tag.getCommitSHA1());
+        }
+        assertEquals(new TreeSet<String>(Arrays.asList("annotated", "lightweight")), onFirst);
+        assertTrue(git.getTagsOnCommit("HEAD").isEmpty());
+        assertEquals("annotated tags are peeled", 2, git.getTagsOnCommit("annotated").size());
+
+        assertTrue(git.tagExists("annotated"));
+        assertFalse(git.tagExists("annot"));
+        assertEquals(new HashSet<String>(Arrays.asList("annotated")), git.getTagNames("ann*"));
+        assertEquals(2, git.getTagNames(null).size());
+
+        // the index follows tags created and deleted behind its back
+        git.tag("second", "Second tag");
+        assertEquals(1, git.getTagsOnCommit("HEAD").size());
+        git.deleteTag("annotated");
+        assertFalse(git.tagExists("annotated"));
+        assertEquals(Collections.singletonList("lightweight"), names(git.getTagsOnCommit("HEAD^")));
+    }
+
+    public void testCheckoutBranch() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        String first = git.revParse("HEAD").name();
+        commit("commitFile2", johnDoe, "Commit number 2");
+        String second = git.revParse("HEAD").name();
+
+        File file1 = new File(workDir, "commitFile1");
+        long modified = file1.lastModified();
+        git.checkoutBranch("build", first);
+        assertEquals("refs/heads/build", git.getRepository().getFullBranch());
+        assertEquals(first, git.revParse("HEAD").name());
+        assertFalse(new File(workDir, "commitFile2").exists());
+        assertEquals("unchanged files are not rewritten", modified, file1.lastModified());
+
+        // the branch is reset, local modifications are discarded
+        FileUtils.writeStringToFile(file1, "local change");
+        git.checkoutBranch("build", second);
+        assertEquals(second, git.revParse("build").name());
+        assertEquals("commitFile1", FileUtils.readFileToString(file1));
+        assertTrue(new File(workDir, "commitFile2").exists());
+
+        git.checkout(first);
+        assertEquals(first, git.getRepository().getFullBranch());
+        assertEquals("", git.launchCommand("status", "--porcelain"));
+    }
+
+    public void testCheckoutBranchConcludesAFailedMerge() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        git.launchCommand("checkout", "-b", "feature");
+        FileUtils.writeStringToFile(new File(workDir, "commitFile1"), "feature content");
+        git.add("commitFile1");
+        git.commit("Feature change");
+        String feature = git.revParse("HEAD").name();
+        git.launchCommand("checkout", "master");
+        FileUtils.writeStringToFile(new File(workDir, "commitFile1"), "master content");
+        git.add("commitFile1");
+        git.commit("Master change");
+        String master = git.revParse("HEAD").name();
+
+        try {
+            git.merge(feature);
+            fail("the merge conflicts");
+        } catch (GitException e) {
+            assertTrue(new File(workDir, ".git/MERGE_HEAD").exists());
+        }
+        git.checkoutBranch("build", feature);
+
+        File gitDir = new File(workDir, ".git");
+        assertFalse(new File(gitDir, "MERGE_HEAD").exists());
+        assertFalse(new File(gitDir, "MERGE_MSG").exists());
+        assertFalse(new File(gitDir, "MERGE_MODE").exists());
+        assertEquals("", git.launchCommand("status", "--porcelain"));
+
+        // the next merge starts from a clean state
+        git.checkoutBranch("build", master);
+        try {
+            git.merge(feature);
+            fail("the merge conflicts");
+        } catch (GitException e) {
+            assertTrue("the merge ran into the conflict", git.launchCommand("ls-files", "-u").length() > 0);
+        }
+    }
+
+    public void testMergeInMemory() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        ObjectId base = git.revParse("HEAD");
+        git.launchCommand("checkout", "-b", "feature");
+        commit("commitFile2", johnDoe, "Commit number 2");
+        ObjectId feature = git.revParse("HEAD");
+        git.launchCommand("checkout", "master");
+        commit("commitFile3", johnDoe, "Commit number 3");
+        ObjectId master = git.revParse("HEAD");
+        String status = git.launchCommand("status", "--porcelain");
+
+        assertEquals("fast-forward", feature, git.mergeInMemory(base, feature));
+        assertEquals("already merged", master, git.mergeInMemory(master, base));
+
+        String objects = git.launchCommand("count-objects");
+        assertTrue(git.canMergeInMemory(master, feature));
+        assertTrue(git.canMergeInMemory(base, feature));
+        assertEquals("the check writes nothing", objects, git.launchCommand("count-objects"));
+
+        ObjectId merge = git.mergeInMemory(master, feature);
+        assertNotNull(merge);
+        assertEquals(master, git.revParse("HEAD"));
+        assertEquals("the work tree is not touched", status, git.launchCommand("status", "--porcelain"));
+        assertEquals(master.name() + " " + feature.name(),
+            git.launchCommand("log", "-1", "--pretty=format:%P", merge.name()));
+        assertEquals("", git.launchCommand("diff", merge.name(), "feature", "--", "commitFile2"));
+        assertEquals("", git.launchCommand("diff", merge.name(), "master", "--", "commitFile3"));
+
+        git.launchCommand("checkout", "feature");
+        FileUtils.writeStringToFile(new File(workDir, "commitFile3"), "conflicting content");
+        git.add("commitFile3");
+        git.commit("Conflicting commit");
+        assertNull(git.mergeInMemory(master, git.revParse("HEAD")));
+        assertFalse(git.canMergeInMemory(master, git.revParse("HEAD")));
+
+        // a file deleted on one side may have been renamed, which only git merge detects
+        git.launchCommand("checkout", "-b", "renamed", base.name());
+        git.launchCommand("mv", "commitFile1", "movedFile1");
+        git.commit("Move commitFile1");
+        git.launchCommand("checkout", "-b", "modified", base.name());
+        FileUtils.writeStringToFile(new File(workDir, "commitFile1"), "modified content");
+        git.add("commitFile1");
+        git.commit("Modify commitFile1");
+        assertNull(git.mergeInMemory(git.revParse("renamed"), git.revParse("modified")));
+        assertTrue(git.canMergeInMemory(git.revParse("renamed"), git.revParse("modified")));
+    }
+
+    public void testPushSeveralRefs() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        git.tag("v1", "Tag v1");
+        File bare = createTmpDir();
+        git.launchCommand("init", "--bare", bare.getAbsolutePath());
+        List<RemoteConfig> remotes = GitSCM.DescriptorImpl.createRepositoryConfigurations(
+            new String[]{bare.getAbsolutePath()}, new String[]{"bare"}, new String[]{""}, new String[]{""});
+
+        List<String> rejected = git.push(remotes.get(0), Arrays.asList("HEAD:master", "HEAD:release", "v1"));
+        assertTrue(rejected.toString(), rejected.isEmpty());
+        GitAPI remote = new GitAPI("git", new FilePath(bare), listener, envVars);
+        assertEquals(git.revParse("HEAD"), remote.revParse("release"));
+        assertEquals(git.revParse("v1^{commit}"), remote.revParse("v1^{commit}"));
+
+        // rewinding master is rejected, release is updated anyway
+        commit("commitFile2", johnDoe, "Commit number 2");
+        git.push(remotes.get(0), Arrays.asList("HEAD:master"));
+        rejected = git.push(remotes.get(0), Arrays.asList("HEAD:release", "HEAD^:master"));
+        assertEquals(Collections.singletonList("refs/heads/master"), rejected);
+        assertEquals(git.revParse("HEAD"), remote.revParse("release"));
+    }
+
+    public void testInProcessTransport() throws Exception {
+        File bare = createTmpDir();
+        git.launchCommand("init", "--bare", bare.getAbsolutePath());
+        assertInProcessTransport("file://" + bare.getAbsolutePath());
+    }
+
+    public void testInProcessTransportWithGitDaemon() throws Exception {
+        File base = createTmpDir();
+        File bare = new File(base, "repo.git");
+        git.launchCommand("init", "--bare", bare.getAbsolutePath());
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        Process daemon = new ProcessBuilder("git", "daemon", "--export-all", "--enable=receive-pack",
+            "--reuseaddr", "--listen=127.0.0.1", "--port=" + port, "--base-path=" + base.getAbsolutePath(),
+            base.getAbsolutePath()).redirectErrorStream(true).start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (true) {
+                try {
+                    new Socket("127.0.0.1", port).close();
+                    break;
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        fail("git daemon did not start");
+                    }
+                    Thread.sleep(100);
+                }
+            }
+            assertInProcessTransport("git://127.0.0.1:" + port + "/repo.git");
+        } finally {
+            daemon.destroy();
+        }
+    }
+
+    public void testInProcessFetchIsCancelled() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        GitAPI clone = new GitAPI("git", new FilePath(createTmpDir()), listener, envVars);
+        clone.init();
+        TransferProgressMonitor monitor = new TransferProgressMonitor(listener, 0);
+        monitor.cancel();
+        try {
+            clone.fetchInProcess(workDir.getAbsolutePath(), "+refs/heads/*:refs/remotes/origin/*", monitor);
+            fail("the fetch is cancelled");
+        } catch (GitException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Cancelled"));
+        }
+    }
+
+    public void testInProcessFetchIsInterruptedWhileStalled() throws Exception {
+        // Accepts the connection and never answers, the fetch waits for its first byte without any timeout
+        ServerSocket server = new ServerSocket(0);
+        Timer timer = new Timer(true);
+        try {
+            GitAPI clone = new GitAPI("git", new FilePath(createTmpDir()), listener, envVars);
+            clone.init();
+            final Thread caller = Thread.currentThread();
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    caller.interrupt();
+                }
+            }, 1000);
+            try {
+                clone.fetchInProcess("git://127.0.0.1:" + server.getLocalPort() + "/repo.git",
+                    "+refs/heads/*:refs/remotes/origin/*", new TransferProgressMonitor(listener, 0));
+                fail("the fetch is interrupted");
+            } catch (GitException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Cancelled"));
+                assertTrue("the caller stays interrupted", Thread.interrupted());
+            }
+        } finally {
+            timer.cancel();
+            server.close();
+        }
+    }
+
+    public void testInProcessFetchOfTheDefaultRemoteUsesTheRefSpec() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        git.branch("feature");
+        GitAPI clone = new GitAPI("git", new FilePath(createTmpDir()), listener, envVars);
+        clone.init();
+        clone.setRemoteUrl("origin", workDir.getAbsolutePath());
+        clone.fetchInProcess(null, "+refs/heads/feature:refs/remotes/origin/feature",
+            new TransferProgressMonitor(listener, 60));
+        assertEquals(git.revParse("feature"), clone.revParse("origin/feature"));
+    }
+
+    private void assertInProcessTransport(String url) throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        git.tag("v1", "Tag v1");
+        List<RemoteConfig> remotes = GitSCM.DescriptorImpl.createRepositoryConfigurations(
+            new String[]{url}, new String[]{"origin"}, new String[]{""}, new String[]{""});
+
+        TransferProgressMonitor monitor = new TransferProgressMonitor(listener, 60);
+        assertTrue(git.pushInProcess(remotes.get(0), Arrays.asList("HEAD:master", "v1"), monitor).isEmpty());
+        assertTrue(monitor.getObjects() > 0);
+
+        GitAPI clone = new GitAPI("git", new FilePath(createTmpDir()), listener, envVars);
+        clone.init();
+        monitor = new TransferProgressMonitor(listener, 60);
+        clone.fetchInProcess(url, "+refs/heads/*:refs/remotes/origin/*", monitor);
+        assertEquals(git.revParse("HEAD"), clone.revParse("origin/master"));
+        assertEquals(git.revParse("v1"), clone.revParse("v1"));
+        assertTrue(monitor.getObjects() > 0);
+        assertTrue(monitor.getBytes() > 0);
+    }
+
+    public void testStreamingCommandOutput() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        commit("commitFile2", johnDoe, "Commit number 2");
+        commit("commitFile3", johnDoe, "Commit number 3");
+
+        List<ObjectId> expected = new ArrayList<ObjectId>();
+        for (String line : git.launchCommand("rev-list", "--all").split("\n")) {
+            expected.add(ObjectId.fromString(line));
+        }
+        assertEquals(expected, git.revListAll());
+        assertEquals(3, git.lsTree("HEAD").size());
+        assertEquals(git.launchCommand("log", "--all", "--pretty=format:'%H#%ct'", "master"),
+            git.getAllLogEntries("master"));
+
+        final List<String> handled = new ArrayList<String>();
+        try {
+            git.launchCommand(new ArgumentListBuilder("rev-list", "--all"), new GitAPI.LineHandler() {
+                public void handle(String line) {
+                    handled.add(line);
+                    throw new GitException("stop at " + line);
+                }
+            });
+            fail("the failure of the handler is rethrown");
+        } catch (GitException e) {
+            assertEquals("stop at " + expected.get(0).name(), e.getMessage());
+        }
+        assertEquals("lines after a failure are skipped", 1, handled.size());
+
+        try {
+            git.lsTree("no-such-tree");
+            fail("ls-tree of an unknown tree fails");
+        } catch (GitException e) {
+            assertTrue("the error output is reported, not parsed", e.getMessage().contains("returned status code"));
+            assertTrue(e.getMessage(), e.getMessage().contains("fatal"));
+        }
+    }
+
+    public void testRevListIterators() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        git.tag("v1", "Tag v1");
+        git.branch("old");
+        commit("commitFile2", johnDoe, "Commit number 2");
+
+        assertEquals(new HashSet<ObjectId>(git.revListAll()), drain(git.revListAllIterator()));
+        assertEquals(new HashSet<ObjectId>(git.revListBranch("old")), drain(git.revListBranchIterator("old")));
+        assertEquals(1, drain(git.revListBranchIterator("v1")).size());
+        assertTrue(git.revListAll() instanceof ObjectIdArray);
+
+        // commits only reachable from a detached HEAD are listed too
+        git.launchCommand("checkout", "-q", "--detach");
+        commit("commitFile3", johnDoe, "Commit number 3");
+        assertTrue(drain(git.revListAllIterator()).contains(git.revParse("HEAD")));
+        assertEquals(new HashSet<ObjectId>(git.revListAll()), drain(git.revListAllIterator()));
+    }
+
+    private static Set<ObjectId> drain(RevListIterator iterator) {
+        Set<ObjectId> commits = new HashSet<ObjectId>();
+        try {
+            while (iterator.hasNext()) {
+                assertTrue("commits are listed once", commits.add(iterator.next()));
+            }
+        } finally {
+            iterator.close();
+        }
+        return commits;
+    }
+
+    public void testRecursiveSubmoduleUpdate() throws Exception {
+        EnvVars env = new EnvVars(envVars);
+        // recent git only clones local submodules when told so
+        env.put("GIT_CONFIG_COUNT", "1");
+        env.put("GIT_CONFIG_KEY_0", "protocol.file.allow");
+        env.put("GIT_CONFIG_VALUE_0", "always");
+
+        GitAPI inner = createRepository("innerFile", env);
+        GitAPI lib = createRepository("libFile", env);
+        lib.launchCommand("submodule", "add", inner.getRepository().getWorkTree().getAbsolutePath(), "inner");
+        lib.commit("Add inner");
+        GitAPI superproject = new GitAPI("git", workspace, listener, env);
+        commit("commitFile1", johnDoe, "Commit number 1");
+        superproject.launchCommand("submodule", "add", lib.getRepository().getWorkTree().getAbsolutePath(), "lib");
+        superproject.commit("Add lib");
+
+        File cloneDir = createTmpDir();
+        superproject.launchCommand("clone", workDir.getAbsolutePath(), cloneDir.getAbsolutePath());
+        GitAPI clone = new GitAPI("git", new FilePath(cloneDir), listener, env);
+        clone.submoduleUpdate(true);
+
+        assertTrue(new File(cloneDir, "lib/libFile").exists());
+        assertTrue("nested submodules are updated", new File(cloneDir, "lib/inner/innerFile").exists());
+        assertEquals(lib.revParse("HEAD"), new GitAPI("git", new FilePath(new File(cloneDir, "lib")), listener, env)
+            .revParse("HEAD"));
+    }
+
+    public void testSubmoduleSetupSkippedWhenUnchanged() throws Exception {
+        EnvVars env = new EnvVars(envVars);
+        env.put("GIT_CONFIG_COUNT", "1");
+        env.put("GIT_CONFIG_KEY_0", "protocol.file.allow");
+        env.put("GIT_CONFIG_VALUE_0", "always");
+
+        GitAPI lib = createRepository("libFile", env);
+        GitAPI superproject = new GitAPI("git", workspace, listener, env);
+        commit("commitFile1", johnDoe, "Commit number 1");
+        superproject.launchCommand("submodule", "add", lib.getRepository().getWorkTree().getAbsolutePath(), "lib");
+        superproject.commit("Add lib");
+
+        File cloneDir = createTmpDir();
+        superproject.launchCommand("clone", workDir.getAbsolutePath(), cloneDir.getAbsolutePath());
+        GitAPI clone = new GitAPI("git", new FilePath(cloneDir), listener, env);
+        clone.setupSubmoduleUrls("origin", listener);
+        assertTrue(clone.getSubmoduleUrl("lib").length() > 0);
+
+        clone.setSubmoduleUrl("lib", "changed-behind-our-back");
+        clone.setupSubmoduleUrls("origin", listener);
+        assertEquals("same .gitmodules and remote URL, nothing is done", "changed-behind-our-back",
+            clone.getSubmoduleUrl("lib"));
+
+        clone.setRemoteUrl("origin", workDir.getAbsolutePath() + "/");
+        clone.setupSubmoduleUrls("origin", listener);
+        assertFalse("the remote URL changed, the submodules are set up again",
+            "changed-behind-our-back".equals(clone.getSubmoduleUrl("lib")));
+    }
+
+    private GitAPI createRepository(String fileName, EnvVars env) throws Exception {
+        File dir = createTmpDir();
+        GitAPI repository = new GitAPI("git", new FilePath(dir), listener, env);
+        repository.init();
+        FileUtils.writeStringToFile(new File(dir, fileName), fileName);
+        repository.add(fileName);
+        repository.commit("Add " + fileName);
+        return repository;
+    }
+
+    public void testFastCleanMatchesGitClean() throws Exception {
+        commit("tracked", johnDoe, "Commit number 1");
+        FileUtils.writeStringToFile(new File(workDir, ".gitignore"), "*.class\n");
+        git.add(".gitignore");
+        git.commit("Ignore classes");
+
+        createUntracked();
+        git.fastClean();
+        Set<String> fast = listWorkTree();
+        createUntracked();
+        git.launchCommand("clean", "-fdx");
+        assertEquals("must match git clean -fdx", listWorkTree(), fast);
+
+        // the recorded paths are revisited, and those which became tracked in the meantime are kept
+        createUntracked();
+        git.fastClean();
+        FileUtils.writeStringToFile(new File(workDir, "untracked.txt"), "now tracked");
+        git.add("untracked.txt");
+        git.commit("Track a file which used to be cleaned");
+        git.fastClean();
+        assertTrue(new File(workDir, "untracked.txt").exists());
+        assertFalse(new File(workDir, "out").exists());
+    }
+
+    public void testFastCleanRevisitsManyRecordedPaths() throws Exception {
+        commit("tracked", johnDoe, "Commit number 1");
+        // More recorded paths than fit on one ls-files command line
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; names.size() * 64 < 2 * GitAPI.MAX_ARGUMENTS_LENGTH; i++) {
+            names.add(StringUtils.leftPad(String.valueOf(i), 64, 'x'));
+        }
+        for (String name : names) {
+            FileUtils.writeStringToFile(new File(workDir, name), "untracked");
+        }
+        git.fastClean();
+
+        for (String name : names) {
+            FileUtils.writeStringToFile(new File(workDir, name), "untracked");
+        }
+        String last = names.get(names.size() - 1);
+        git.add(last);
+        git.commit("Track the last recorded path");
+        git.fastClean();
+        assertFalse(new File(workDir, names.get(0)).exists());
+        assertTrue("tracked in the last batch", new File(workDir, last).exists());
+    }
+
+    private void createUntracked() throws Exception {
+        FileUtils.writeStringToFile(new File(workDir, "untracked.txt"), "untracked");
+        FileUtils.writeStringToFile(new File(workDir, "out/nested/Build.class"), "ignored");
+        FileUtils.writeStringToFile(new File(workDir, "Main.class"), "ignored");
+        new File(workDir, "empty").mkdirs();
+    }
+
+    private Set<String> listWorkTree() {
+        Set<String> paths = new TreeSet<String>();
+        for (File file : FileUtils.listFiles(workDir, null, true)) {
+            String path = file.getAbsolutePath().substring(workDir.getAbsolutePath().length() + 1);
+            if (!path.startsWith(".git" + File.separator)) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    private static List<String> names(List<Tag> tags) {
+        List<String> names = new ArrayList<String>();
+        for (Tag tag : tags) {
+            names.add(tag.getName());
+        }
+        return names;
+    }
+
+    private void assertBranchesContaining(String revspec, String... expected) throws Exception {
+        Set<String> names = new TreeSet<String>();
+        for (Branch branch : git.getBranchesContaining(revspec)) {
+            names.add(branch.getName());
+            assertEquals(git.revParse(branch.getName()), branch.getSHA1());
+        }
+        assertEquals(new TreeSet<String>(Arrays.asList(expected)), names);
+        assertEquals("must match git branch --contains", cliBranchesContaining(revspec), names);
+    }
+
+    private Set<String> cliBranchesContaining(String revspec) throws Exception {
+        Set<String> names = new TreeSet<String>();
+        BufferedReader reader = new BufferedReader(
+            new StringReader(git.launchCommand("branch", "-a", "--contains", revspec)));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            names.add(line.substring(2));
+        }
+        return names;
+    }
+}
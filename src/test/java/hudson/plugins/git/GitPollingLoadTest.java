@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git;
+
+import hudson.FilePath;
+import hudson.model.FreeStyleProject;
+import hudson.model.Hudson;
+import hudson.model.Result;
+import hudson.plugins.git.opt.PreBuildMergeOptions;
+import hudson.plugins.git.util.DefaultBuildChooser;
+import hudson.tools.ToolProperty;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Synthetic polling load harness.
+ * <p/>
+ * Creates N {@link GitSCM} jobs spread over M local bare repositories, keeps moving the branch heads of those
+ * repositories at a configurable rate and polls all jobs concurrently. At the end throughput, p50/p99 poll
+ * latency, the number of forked git processes and the heap growth are reported on stdout.
+ * <p/>
+ * The defaults are small so that the harness runs as a smoke test with the rest of the suite. Scale it with
+ * system properties, e.g.
+ * <pre>
+ * mvn test -Dtest=GitPollingLoadTest -Dhudson.plugins.git.GitPollingLoadTest.jobs=200 \
+ *     -Dhudson.plugins.git.GitPollingLoadTest.repos=20 -Dhudson.plugins.git.GitPollingLoadTest.rounds=10 \
+ *     -Dhudson.plugins.git.GitPollingLoadTest.mutationsPerSecond=5 -Dhudson.plugins.git.GitPollingLoadTest.threads=16
+ * </pre>
+ */
+public class GitPollingLoadTest extends AbstractGitTestCase {
+    private static final String PREFIX = GitPollingLoadTest.class.getName() + ".";
+
+    private final int jobs = Integer.getInteger(PREFIX + "jobs", 4);
+    private final int repos = Integer.getInteger(PREFIX + "repos", 2);
+    private final int rounds = Integer.getInteger(PREFIX + "rounds", 3);
+    private final int threads = Integer.getInteger(PREFIX + "threads", 4);
+    private final int mutationsPerSecond = Integer.getInteger(PREFIX + "mutationsPerSecond", 2);
+
+    private File forkCounter;
+
+    public void testConcurrentPolling() throws Exception {
+        List<GitAPI> seeds = new ArrayList<GitAPI>();
+        List<File> bareRepos = new ArrayList<File>();
+        for (int i = 0; i < repos; i++) {
+            File seedDir = createTmpDir();
+            GitAPI seed = new GitAPI("git", new FilePath(seedDir), listener, envVars);
+            seed.init();
+            commit(seed, "file-" + i, "Initial commit of repository " + i);
+
+            File bareDir = createTmpDir();
+            seed.launchCommand("clone", "--bare", seedDir.getAbsolutePath(), bareDir.getAbsolutePath());
+            seeds.add(seed);
+            bareRepos.add(bareDir);
+        }
+
+        installCountingGitTool();
+
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < jobs; i++) {
+            FreeStyleProject project = createFreeStyleProject("load-" + i);
+            project.setScm(new GitSCM(
+                GitSCM.DescriptorImpl.createRepositoryConfigurations(
+                    new String[]{bareRepos.get(i % repos).getAbsolutePath()},
+                    new String[]{"origin"},
+                    new String[]{""},
+                    new String[]{""}),
+                Collections.singletonList(new BranchSpec("master")),
+                new PreBuildMergeOptions(), false, Collections.<SubmoduleConfig>emptyList(), false,
+                false, new DefaultBuildChooser(), null, null, false,
+                null, null, null, false, false, null, null, false, null));
+            // polling only fetches once the job has been built at least once
+            build(project, Result.SUCCESS);
+            projects.add(project);
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicInteger mutations = new AtomicInteger();
+        Thread mutator = startMutator(seeds, bareRepos, stop, mutations);
+
+        ExecutorService pollers = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> polls = new ArrayList<Future<Long>>();
+
+        resetForkCount();
+        System.gc();
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+
+        for (int round = 0; round < rounds; round++) {
+            for (final FreeStyleProject project : projects) {
+                polls.add(pollers.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long pollStart = System.nanoTime();
+                        project.pollSCMChanges(listener);
+                        return System.nanoTime() - pollStart;
+                    }
+                }));
+            }
+        }
+
+        List<Long> latencies = new ArrayList<Long>();
+        for (Future<Long> poll : polls) {
+            latencies.add(poll.get());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        stop.set(true);
+        mutator.join();
+        pollers.shutdown();
+        pollers.awaitTermination(1, TimeUnit.MINUTES);
+
+        System.gc();
+        long heapAfter = usedHeap();
+        int forks = forkCount();
+
+        Collections.sort(latencies);
+        System.out.println("=== Git polling load ===");
+        System.out.println("jobs=" + jobs + " repos=" + repos + " rounds=" + rounds + " threads=" + threads
+            + " mutationsPerSecond=" + mutationsPerSecond);
+        System.out.println("polls            : " + latencies.size() + " in " + millis(elapsed) + " ms");
+        System.out.println("ref mutations    : " + mutations.get());
+        System.out.println("throughput       : "
+            + String.format("%.2f", latencies.size() / (elapsed / 1.0e9)) + " polls/s");
+        System.out.println("latency p50      : " + millis(percentile(latencies, 50)) + " ms");
+        System.out.println("latency p99      : " + millis(percentile(latencies, 99)) + " ms");
+        System.out.println("git forks        : " + (forks < 0 ? "n/a" : forks + " ("
+            + String.format("%.1f", (double) forks / latencies.size()) + " per poll)"));
+        System.out.println("heap growth      : " + ((heapAfter - heapBefore) / 1024) + " KB");
+
+        assertEquals(jobs * rounds, latencies.size());
+    }
+
+    private Thread startMutator(final List<GitAPI> seeds, final List<File> bareRepos, final AtomicBoolean stop,
+                                final AtomicInteger mutations) {
+        Thread mutator = new Thread("git-ref-mutator") {
+            @Override
+            public void run() {
+                Random random = new Random();
+                long pause = mutationsPerSecond > 0 ? 1000L / mutationsPerSecond : 0;
+                while (!stop.get() && pause > 0) {
+                    int i = random.nextInt(seeds.size());
+                    GitAPI seed = seeds.get(i);
+                    int n = mutations.incrementAndGet();
+                    try {
+                        commit(seed, "mutation-" + n, "Mutation " + n);
+                        seed.launchCommand("push", bareRepos.get(i).getAbsolutePath(), "HEAD:refs/heads/master");
+                        Thread.sleep(pause);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (GitException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        mutator.start();
+        return mutator;
+    }
+
+    private void commit(GitAPI seed, String fileName, String message) throws GitException {
+        try {
+            new FilePath(seed.getRepository().getWorkTree()).child(fileName).write(message, null);
+        } catch (Exception e) {
+            throw new GitException("unable to write file", e);
+        }
+        seed.add(fileName);
+        seed.commit(message);
+    }
+
+    /**
+     * Points the default git installation at a wrapper script which records every invocation, so that the number
+     * of forked git processes can be reported. Only available where a POSIX shell is.
+     */
+    private void installCountingGitTool() throws Exception {
+        if (File.separatorChar != '/') {
+            return;
+        }
+        File dir = createTmpDir();
+        forkCounter = new File(dir, "forks");
+        File script = new File(dir, "git");
+        FileUtils.writeStringToFile(script, "#!/bin/sh\n"
+            + "echo x >> '" + forkCounter.getAbsolutePath() + "'\n"
+            + "exec git \"$@\"\n");
+        script.setExecutable(true);
+
+        GitTool.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(GitTool.DescriptorImpl.class);
+        descriptor.setInstallations(new GitTool("counting", script.getAbsolutePath(),
+            Collections.<ToolProperty<?>>emptyList()));
+    }
+
+    private void resetForkCount() {
+        if (forkCounter != null) {
+            forkCounter.delete();
+        }
+    }
+
+    private int forkCount() throws Exception {
+        if (forkCounter == null) {
+            return -1;
+        }
+        return forkCounter.exists() ? FileUtils.readLines(forkCounter).size() : 0;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -23,6 +23,7 @@
  */
 package hudson.plugins.git;
 
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.matrix.Axis;
 import hudson.matrix.AxisList;
@@ -30,11 +31,17 @@ import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixProject;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
 import hudson.model.Hudson;
 import hudson.plugins.git.GitPublisher.BranchToPush;
 import hudson.plugins.git.GitPublisher.TagToPush;
+import hudson.plugins.git.opt.PreBuildMergeOptions;
+import hudson.plugins.git.util.DefaultBuildChooser;
 import hudson.scm.NullSCM;
 import hudson.tasks.BuildStepDescriptor;
+import java.io.File;
+import java.util.Arrays;
 import java.util.Collections;
 import org.jvnet.hudson.test.Bug;
 
@@ -89,6 +96,39 @@ public class GitPublisherTest extends AbstractGitTestCase {
         assertEquals(3, run[0]);
     }
 
+    public void testPushToSeveralRemotes() throws Exception {
+        commit("a", johnDoe, "commit #1");
+        File mirror1 = createTmpDir();
+        File mirror2 = createTmpDir();
+        git.launchCommand("init", "--bare", mirror1.getAbsolutePath());
+        git.launchCommand("init", "--bare", mirror2.getAbsolutePath());
+
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new GitSCM(
+            GitSCM.DescriptorImpl.createRepositoryConfigurations(
+                new String[]{workDir.getAbsolutePath(), mirror1.getAbsolutePath(), mirror2.getAbsolutePath()},
+                new String[]{"origin", "mirror1", "mirror2"},
+                new String[]{"", "", ""},
+                new String[]{"", "", ""}),
+            Collections.singletonList(new BranchSpec("origin/master")),
+            new PreBuildMergeOptions(), false, Collections.<SubmoduleConfig>emptyList(), false,
+            false, new DefaultBuildChooser(), null, null, false,
+            null, null, null, false, false, null, null, false, null));
+        project.getPublishersList().add(new GitPublisher(
+            Collections.singletonList(new TagToPush("mirror1", "release-$BUILD_NUMBER", true)),
+            Arrays.asList(new BranchToPush("mirror1", "published"), new BranchToPush("mirror2", "published")),
+            true, false));
+
+        FreeStyleBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+        String head = git.revParse("HEAD").name();
+        for (File mirror : Arrays.asList(mirror1, mirror2)) {
+            GitAPI remote = new GitAPI("git", new FilePath(mirror), listener, envVars);
+            assertEquals(head, remote.revParse("published").name());
+        }
+        assertEquals(head, new GitAPI("git", new FilePath(mirror1), listener, envVars)
+            .revParse("release-" + build.getNumber() + "^{commit}").name());
+    }
+
     private boolean existsTag(String tag) {
         String tags = git.launchCommand("tag");
         System.out.println(tags);
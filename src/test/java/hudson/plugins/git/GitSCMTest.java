@@ -23,13 +23,29 @@
  */
 package hudson.plugins.git;
 
+import hudson.FilePath;
+import hudson.matrix.Axis;
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Node;
 import hudson.model.Result;
 import hudson.model.User;
+import hudson.plugins.git.opt.PreBuildMergeOptions;
+import hudson.plugins.git.util.BuildData;
+import hudson.plugins.git.util.BuildDataIndex;
+import hudson.plugins.git.util.DefaultBuildChooser;
 import hudson.slaves.EnvironmentVariablesNodeProperty.Entry;
+import hudson.tools.ToolProperty;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.transport.RemoteConfig;
 
 /**
  * Tests for {@link GitSCM}.
@@ -68,6 +84,181 @@ public class GitSCMTest extends AbstractGitTestCase {
         assertFalse("scm polling should not detect any more changes after build", project.pollSCMChanges(listener));
     }
 
+    public void testBuildDataIndex() throws Exception {
+        FreeStyleProject project = setupSimpleProject("master");
+        final String commitFile1 = "commitFile1";
+        commit(commitFile1, johnDoe, "Commit number 1");
+        final FreeStyleBuild build1 = build(project, Result.SUCCESS, commitFile1);
+        final String commitFile2 = "commitFile2";
+        commit(commitFile2, janeDoe, "Commit number 2");
+        final FreeStyleBuild build2 = build(project, Result.SUCCESS, commitFile2);
+        assertSame(build2, BuildDataIndex.lookup(build2));
+
+        build2.delete();
+        assertNull("deleted build should be dropped from the index", BuildDataIndex.lookup(build1));
+        GitSCM scm = (GitSCM) project.getScm();
+        assertSame(build1.getAction(BuildData.class), scm.getBuildData(build1, false));
+        assertSame(build1, BuildDataIndex.lookup(build1));
+    }
+
+    public void testDeletedBranchesAreKeptWithoutPruning() throws Exception {
+        GitSCM.DescriptorImpl descriptor = hudson.getDescriptorByType(GitSCM.DescriptorImpl.class);
+        descriptor.setPruneDeletedBranchData(true);
+        try {
+            FreeStyleProject project = setupSimpleProject("**");
+            commit("commitFile1", johnDoe, "Commit number 1");
+            git.branch("feature");
+            build(project, Result.SUCCESS, "commitFile1");
+            while (project.pollSCMChanges(listener)) {
+                build(project, Result.SUCCESS);
+            }
+            assertNotNull(project.getLastBuild().getAction(BuildData.class).getLastBuildOfBranch("origin/feature"));
+
+            git.launchCommand("branch", "-D", "feature");
+            commit("commitFile2", janeDoe, "Commit number 2");
+            FreeStyleBuild build = build(project, Result.SUCCESS, "commitFile2");
+            String log = build.getLog();
+            assertTrue(log, log.contains("Keeping the history of deleted branches as remote branches are not pruned"));
+            assertNotNull(build.getAction(BuildData.class).getLastBuildOfBranch("origin/feature"));
+        } finally {
+            descriptor.setPruneDeletedBranchData(false);
+        }
+    }
+
+    public void testSharedRepositoryPrunesDeletedBranches() throws Exception {
+        GitSCM.DescriptorImpl descriptor = hudson.getDescriptorByType(GitSCM.DescriptorImpl.class);
+        descriptor.setSharedNodeRepository(true);
+        try {
+            FreeStyleProject project = createFreeStyleProject();
+            project.setScm(new GitSCM(createRemoteRepositories(null),
+                Collections.singletonList(new BranchSpec("master")), new PreBuildMergeOptions(), false,
+                Collections.<SubmoduleConfig>emptyList(), false, false, new DefaultBuildChooser(), null, null, false,
+                null, null, null, null, false, true, null, null, false));
+            commit("commitFile1", johnDoe, "Commit number 1");
+            git.branch("feature");
+            FreeStyleBuild build = build(project, Result.SUCCESS, "commitFile1");
+            GitAPI workspaceGit = new GitAPI("git", build.getWorkspace(), listener, envVars);
+            assertTrue(workspaceGit.launchCommand("branch", "-r").contains("origin/feature"));
+
+            git.launchCommand("branch", "-D", "feature");
+            commit("commitFile2", janeDoe, "Commit number 2");
+            build(project, Result.SUCCESS, "commitFile2");
+            assertFalse("deleted branch should be pruned",
+                workspaceGit.launchCommand("branch", "-r").contains("origin/feature"));
+        } finally {
+            descriptor.setSharedNodeRepository(false);
+        }
+    }
+
+    public void testBuildMarkerNotes() throws Exception {
+        GitSCM.DescriptorImpl descriptor = hudson.getDescriptorByType(GitSCM.DescriptorImpl.class);
+        descriptor.setBuildMarkerNotes(true);
+        try {
+            FreeStyleProject project = setupSimpleProject("master");
+            final String commitFile1 = "commitFile1";
+            commit(commitFile1, johnDoe, "Commit number 1");
+            final FreeStyleBuild build = build(project, Result.SUCCESS, commitFile1);
+
+            GitAPI workspaceGit = new GitAPI("git", build.getWorkspace(), listener, envVars);
+            assertTrue("no internal tag expected", workspaceGit.getTagNames(null).isEmpty());
+            String note = workspaceGit.launchCommand("notes", "--ref=hudson", "show", "HEAD");
+            assertTrue(note, note.contains("hudson-" + project.getName() + "-" + build.getNumber()));
+        } finally {
+            descriptor.setBuildMarkerNotes(false);
+        }
+    }
+
+    public void testPollingSkipsCandidatesThatDoNotMerge() throws Exception {
+        FreeStyleProject project = setupMergeProject();
+        commitContent("conflictFile", "master content");
+        git.checkout("feature");
+        commitContent("conflictFile", "feature content");
+
+        GitSCM.DescriptorImpl descriptor = hudson.getDescriptorByType(GitSCM.DescriptorImpl.class);
+        descriptor.setPollMergeCheck(true);
+        try {
+            assertFalse("the candidate does not merge onto master", project.pollSCMChanges(listener));
+            File gitDir = new File(project.getSomeWorkspace().getRemote(), ".git");
+            assertTrue("the next polls skip the merge",
+                MergeConflictCache.isConflict(gitDir, git.revParse("feature"), git.revParse("master")));
+            assertFalse(project.pollSCMChanges(listener));
+        } finally {
+            descriptor.setPollMergeCheck(false);
+        }
+        assertTrue(project.pollSCMChanges(listener));
+    }
+
+    public void testFailedMergeWithoutConflictsIsNotCached() throws Exception {
+        if (File.separatorChar != '/') {
+            return;
+        }
+        FreeStyleProject project = setupMergeProject();
+        commitContent("conflictFile", "master content");
+        git.checkout("feature");
+        commitContent("conflictFile", "feature content");
+
+        // a git whose merge fails before touching the index, like with a locked index
+        File dir = createTmpDir();
+        File script = new File(dir, "git");
+        FileUtils.writeStringToFile(script, "#!/bin/sh\n"
+            + "if [ \"$1\" = merge ]; then echo 'fatal: simulated failure' >&2; exit 128; fi\n"
+            + "exec git \"$@\"\n");
+        script.setExecutable(true);
+        hudson.getDescriptorByType(GitTool.DescriptorImpl.class).setInstallations(
+            new GitTool("failing-merge", script.getAbsolutePath(), Collections.<ToolProperty<?>>emptyList()));
+
+        FreeStyleBuild build = build(project, null);
+        String log = build.getLog();
+        assertTrue(log, log.contains("git merge failed"));
+        FilePath gitDir = build.getWorkspace().child(".git");
+        assertFalse("only conflicts are cached", gitDir.child(MergeConflictCache.FILE).exists());
+        assertFalse(gitDir.child("MERGE_HEAD").exists());
+    }
+
+    /**
+     * Creates a project building the branch "feature" merged onto master, and builds it once.
+     */
+    private FreeStyleProject setupMergeProject() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        git.branch("feature");
+        List<RemoteConfig> remotes = createRemoteRepositories(null);
+        PreBuildMergeOptions mergeOptions = new PreBuildMergeOptions();
+        mergeOptions.setMergeRemote(remotes.get(0));
+        mergeOptions.setMergeTarget("master");
+        FreeStyleProject project = createFreeStyleProject();
+        project.setScm(new GitSCM(remotes, Collections.singletonList(new BranchSpec("feature")),
+            mergeOptions, false, Collections.<SubmoduleConfig>emptyList(), false,
+            false, new DefaultBuildChooser(), null, null, false,
+            null, null, null, false, false, null, null, false, null));
+        build(project, Result.SUCCESS, "commitFile1");
+        return project;
+    }
+
+    private void commitContent(String fileName, String content) throws Exception {
+        FileUtils.writeStringToFile(new File(workDir, fileName), content);
+        git.add(fileName);
+        git.commit("Change " + fileName);
+    }
+
+    public void testMatrixConfigurationsFetchFromParent() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        MatrixProject project = createMatrixProject("matrix");
+        project.setAxes(new AxisList(new Axis("VAR", "a", "b")));
+        project.setScm(new GitSCM(workDir.getAbsolutePath()));
+
+        MatrixBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+        String head = git.revParse("HEAD").name();
+        for (MatrixRun run : build.getRuns()) {
+            String log = run.getLog();
+            assertTrue(log, log.contains("Fetching " + head + " from the workspace of the parent build"));
+            assertTrue(run.getWorkspace().child("commitFile1").exists());
+            assertEquals(head, run.getAction(BuildData.class).getLastBuiltRevision().getSha1String());
+            assertEquals("configured like a clone", "+refs/heads/*:refs/remotes/origin/*",
+                new GitAPI("git", run.getWorkspace(), listener, envVars)
+                    .launchCommand("config", "remote.origin.fetch").trim());
+        }
+    }
+
     public void testBasicInSubdir() throws Exception {
         FreeStyleProject project = setupProject("master", false, "subdir");
 
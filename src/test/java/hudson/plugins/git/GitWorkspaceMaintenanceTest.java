@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git;
+
+import hudson.FilePath;
+import hudson.matrix.Axis;
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.slaves.WorkspaceList;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.transport.RemoteConfig;
+
+/**
+ * Tests for {@link GitWorkspaceMaintenance}.
+ */
+public class GitWorkspaceMaintenanceTest extends AbstractGitTestCase {
+
+    private int looseObjects;
+    private int looseRefs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        looseObjects = GitWorkspaceMaintenance.LOOSE_OBJECTS_THRESHOLD;
+        looseRefs = GitWorkspaceMaintenance.LOOSE_REFS_THRESHOLD;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        GitWorkspaceMaintenance.LOOSE_OBJECTS_THRESHOLD = looseObjects;
+        GitWorkspaceMaintenance.LOOSE_REFS_THRESHOLD = looseRefs;
+        super.tearDown();
+    }
+
+    /**
+     * Makes the maintenance pack any workspace, whatever its number of loose objects and refs.
+     */
+    private static void packEverything() {
+        GitWorkspaceMaintenance.LOOSE_OBJECTS_THRESHOLD = 0;
+        GitWorkspaceMaintenance.LOOSE_REFS_THRESHOLD = 0;
+    }
+
+    public void testPacksWorkspaceAboveThresholds() throws Exception {
+        FreeStyleProject project = setupSimpleProject("master");
+        commit("commitFile1", johnDoe, "Commit number 1");
+        FreeStyleBuild build = build(project, Result.SUCCESS, "commitFile1");
+
+        FilePath gitDir = build.getWorkspace().child(".git");
+        GitAPI workspaceGit = new GitAPI("git", build.getWorkspace(), listener, envVars);
+        for (int i = 0; i < 5; i++) {
+            workspaceGit.launchCommand("tag", "maintenance-" + i);
+        }
+        assertTrue(gitDir.child("refs/tags/maintenance-0").exists());
+
+        packEverything();
+        new GitWorkspaceMaintenance().execute(listener);
+
+        assertFalse("refs should be packed", gitDir.child("refs/tags/maintenance-0").exists());
+        assertTrue(gitDir.child("packed-refs").readToString().contains("refs/tags/maintenance-0"));
+        assertTrue(workspaceGit.tagExists("maintenance-4"));
+        assertFalse("scm polling should not detect any changes after maintenance", project.pollSCMChanges(listener));
+    }
+
+    public void testSkipsWorkspaceInUse() throws Exception {
+        FreeStyleProject project = setupSimpleProject("master");
+        commit("commitFile1", johnDoe, "Commit number 1");
+        FreeStyleBuild build = build(project, Result.SUCCESS, "commitFile1");
+        FilePath workspace = build.getWorkspace();
+        new GitAPI("git", workspace, listener, envVars).launchCommand("tag", "maintenance");
+
+        packEverything();
+        WorkspaceList.Lease lease = hudson.toComputer().getWorkspaceList().acquire(workspace);
+        try {
+            new GitWorkspaceMaintenance().execute(listener);
+        } finally {
+            lease.release();
+        }
+        assertTrue("a workspace in use should be left alone", workspace.child(".git/refs/tags/maintenance").exists());
+
+        new GitWorkspaceMaintenance().execute(listener);
+        assertFalse(workspace.child(".git/refs/tags/maintenance").exists());
+    }
+
+    public void testPacksMatrixAndConcurrentWorkspaces() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        MatrixProject project = createMatrixProject("matrix");
+        project.setAxes(new AxisList(new Axis("VAR", "a", "b")));
+        project.setScm(new GitSCM(workDir.getAbsolutePath()));
+        MatrixBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+
+        List<FilePath> workspaces = new ArrayList<FilePath>();
+        for (MatrixRun run : build.getRuns()) {
+            workspaces.add(run.getWorkspace());
+        }
+        // Left behind by a concurrent build
+        File concurrent = new File(build.getWorkspace().getRemote() + "@2");
+        FileUtils.copyDirectory(new File(build.getWorkspace().getRemote()), concurrent);
+        workspaces.add(new FilePath(concurrent));
+        for (FilePath workspace : workspaces) {
+            new GitAPI("git", workspace, listener, envVars).launchCommand("tag", "maintenance");
+        }
+
+        packEverything();
+        new GitWorkspaceMaintenance().execute(listener);
+
+        for (FilePath workspace : workspaces) {
+            assertFalse(workspace + " should be packed", workspace.child(".git/refs/tags/maintenance").exists());
+            assertTrue(workspace.child(".git/packed-refs").readToString().contains("refs/tags/maintenance"));
+        }
+    }
+
+    public void testSharedRepositoryIsCollectedWithTheLastJob() throws Exception {
+        GitSCM.DescriptorImpl descriptor = hudson.getDescriptorByType(GitSCM.DescriptorImpl.class);
+        descriptor.setSharedNodeRepository(true);
+        try {
+            FreeStyleProject first = setupSimpleProject("master");
+            FreeStyleProject second = setupSimpleProject("master");
+            commit("commitFile1", johnDoe, "Commit number 1");
+            FreeStyleBuild build = build(first, Result.SUCCESS, "commitFile1");
+            build(second, Result.SUCCESS, "commitFile1");
+
+            FilePath root = hudson.getRootPath().child(SharedNodeRepository.ROOT);
+            assertEquals("one shared repository per remote", 1, root.listDirectories().size());
+            FilePath shared = root.listDirectories().get(0);
+            String alternates = build.getWorkspace().child(".git/objects/info/alternates").readToString();
+            assertTrue(alternates, alternates.contains(shared.child("objects").getRemote()));
+
+            commit("commitFile2", janeDoe, "Commit number 2");
+            assertTrue("polling should go through the shared repository", first.pollSCMChanges(listener));
+            build(first, Result.SUCCESS, "commitFile2");
+
+            FilePath firstWorkspace = first.getSomeWorkspace();
+            FilePath secondWorkspace = second.getSomeWorkspace();
+            second.delete();
+            secondWorkspace.deleteRecursive();
+            new GitWorkspaceMaintenance().execute(listener);
+            assertTrue("still used by the first job", shared.exists());
+            assertTrue(firstWorkspace.child(".git").exists());
+
+            // The workspace of a deleted job may be left behind
+            first.delete();
+            assertTrue(firstWorkspace.child(".git").exists());
+            new GitWorkspaceMaintenance().execute(listener);
+            assertFalse("no job uses the shared repository anymore", shared.exists());
+        } finally {
+            descriptor.setSharedNodeRepository(false);
+        }
+    }
+
+    public void testMatrixWorkspacesAreNeverDeleted() throws Exception {
+        GitSCM.DescriptorImpl descriptor = hudson.getDescriptorByType(GitSCM.DescriptorImpl.class);
+        descriptor.setSharedNodeRepository(true);
+        try {
+            commit("commitFile1", johnDoe, "Commit number 1");
+            MatrixProject project = createMatrixProject("matrix");
+            project.setAxes(new AxisList(new Axis("VAR", "a", "b")));
+            GitSCM scm = new GitSCM(workDir.getAbsolutePath());
+            project.setScm(scm);
+            MatrixBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0).get());
+
+            FilePath root = hudson.getRootPath().child(SharedNodeRepository.ROOT);
+            FilePath shared = root.listDirectories().get(0);
+            // Configurations built on another node than their parent borrow from the shared repository themselves
+            RemoteConfig remote = scm.getRepositories().get(0);
+            List<FilePath> workspaces = new ArrayList<FilePath>();
+            workspaces.add(build.getWorkspace());
+            for (MatrixRun run : build.getRuns()) {
+                FilePath workspace = run.getWorkspace();
+                SharedNodeRepository.get(new File(root.getRemote()), remote.getURIs().get(0))
+                    .attach(new GitAPI("git", workspace, listener, envVars), new File(workspace.getRemote()), remote,
+                        run.getProject().getFullName());
+                workspaces.add(workspace);
+            }
+
+            new GitWorkspaceMaintenance().execute(listener);
+            assertTrue("still used by the configurations", shared.exists());
+            for (FilePath workspace : workspaces) {
+                assertTrue(workspace + " should be left alone", workspace.child(".git").exists());
+            }
+
+            // A workspace which stopped borrowing is unregistered, its repository is kept
+            FilePath unlinked = workspaces.get(1);
+            unlinked.child(".git/objects/info/alternates").delete();
+            new GitWorkspaceMaintenance().execute(listener);
+            assertTrue(unlinked.child(".git").exists());
+            assertTrue(shared.exists());
+
+            for (FilePath workspace : workspaces) {
+                workspace.deleteRecursive();
+            }
+            new GitWorkspaceMaintenance().execute(listener);
+            assertFalse("no workspace uses the shared repository anymore", shared.exists());
+        } finally {
+            descriptor.setSharedNodeRepository(false);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Tests for {@link SubmoduleCombinator}.
+ */
+public class SubmoduleCombinatorTest extends AbstractGitTestCase {
+
+    public void testMakeCombinationInMemory() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        String first = git.revParse("HEAD").name();
+        commit("commitFile2", johnDoe, "Commit number 2");
+        String second = git.revParse("HEAD").name();
+        git.launchCommand("update-index", "--add", "--cacheinfo", "160000", first, "modules/lib");
+        git.commit("Add lib");
+        ObjectId base = git.revParse("HEAD");
+
+        SubmoduleCombinator combinator = new SubmoduleCombinator(git, listener, workDir,
+            Collections.<SubmoduleConfig>emptyList());
+        Map<IndexEntry, Revision> settings = Collections.singletonMap(
+            new IndexEntry("160000", "commit", first, "modules/lib"), new Revision(ObjectId.fromString(second)));
+        combinator.makeCombination(base, "combine-test", settings);
+
+        assertEquals("the workspace is left alone", base, git.revParse("HEAD"));
+        assertEquals(base, git.revParse("combine-test^"));
+        assertEquals(second, git.revParse("combine-test:modules/lib").name());
+        assertEquals(git.revParse("HEAD:commitFile2"), git.revParse("combine-test:commitFile2"));
+        String message = git.launchCommand("log", "-1", "--format=%B", "combine-test");
+        assertTrue(message, message.contains("modules/lib"));
+    }
+
+    public void testCombinationIsCreatedOnTheNearestConfiguration() throws Exception {
+        ObjectId[][] modules = setupSuperproject();
+        ObjectId devBase = git.revParse("HEAD~1");
+
+        boolean inMemory = SubmoduleCombinator.IN_MEMORY;
+        SubmoduleCombinator.IN_MEMORY = true;
+        try {
+            new SubmoduleCombinator(git, listener, workDir, Collections.<SubmoduleConfig>emptyList())
+                .createSubmoduleCombinations();
+        } finally {
+            SubmoduleCombinator.IN_MEMORY = inMemory;
+        }
+
+        List<String> combinations = getCombinationBranches();
+        assertEquals("two of the four combinations already exist", 2, combinations.size());
+        for (String name : combinations) {
+            if (git.revParse(name + ":modules/a").equals(modules[0][1])) {
+                assertEquals("shares the dev branch of modules/a with the previous commit", devBase,
+                    git.revParse(name + "^"));
+            } else {
+                assertEquals(git.revParse("HEAD"), git.revParse(name + "^"));
+            }
+            assertEquals(modules[1][1], git.revParse(name + ":modules/b"));
+        }
+    }
+
+    public void testGenerationStopsAtMaxCombinations() throws Exception {
+        setupSuperproject();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        boolean inMemory = SubmoduleCombinator.IN_MEMORY;
+        int maxCombinations = SubmoduleCombinator.MAX_COMBINATIONS;
+        SubmoduleCombinator.IN_MEMORY = true;
+        SubmoduleCombinator.MAX_COMBINATIONS = 1;
+        try {
+            new SubmoduleCombinator(git, new StreamTaskListener(log), workDir,
+                Collections.<SubmoduleConfig>emptyList()).createSubmoduleCombinations();
+        } finally {
+            SubmoduleCombinator.IN_MEMORY = inMemory;
+            SubmoduleCombinator.MAX_COMBINATIONS = maxCombinations;
+        }
+
+        assertEquals(1, getCombinationBranches().size());
+        String output = log.toString();
+        assertTrue(output, output.contains("There are 4 submodule/revision combinations possible"));
+        assertTrue(output, output.contains("Stopped at 1 generated combinations"));
+        assertTrue(output, output.contains("left unexamined"));
+
+        // The cap is only reported when a missing combination is left out
+        log.reset();
+        SubmoduleCombinator.IN_MEMORY = true;
+        SubmoduleCombinator.MAX_COMBINATIONS = 1;
+        try {
+            new SubmoduleCombinator(git, new StreamTaskListener(log), workDir,
+                Collections.<SubmoduleConfig>emptyList()).createSubmoduleCombinations();
+        } finally {
+            SubmoduleCombinator.IN_MEMORY = inMemory;
+            SubmoduleCombinator.MAX_COMBINATIONS = maxCombinations;
+        }
+        assertEquals(2, getCombinationBranches().size());
+        output = log.toString();
+        assertFalse(output, output.contains("Stopped at"));
+    }
+
+    /**
+     * Creates two submodules, each with a master and a dev branch, and a superproject going from both masters to
+     * the dev branch of modules/a and back.
+     *
+     * @return the master and dev heads of modules/a and modules/b.
+     */
+    private ObjectId[][] setupSuperproject() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        ObjectId[] a = createSubmodule("modules/a");
+        ObjectId[] b = createSubmodule("modules/b");
+        setGitlinks(a[0], b[0]);
+        git.commit("Both masters");
+        setGitlinks(a[1], b[0]);
+        git.commit("Dev of modules/a");
+        setGitlinks(a[0], b[0]);
+        git.commit("Back to both masters");
+        return new ObjectId[][]{a, b};
+    }
+
+    private ObjectId[] createSubmodule(String path) throws Exception {
+        File source = createTmpDir();
+        GitAPI sub = new GitAPI("git", new FilePath(source), listener, envVars);
+        sub.init();
+        commitTo(sub, source, "base");
+        ObjectId master = commitTo(sub, source, "master");
+        sub.launchCommand("checkout", "-b", "dev", "HEAD~1");
+        ObjectId dev = commitTo(sub, source, "dev");
+        git.launchCommand("clone", source.getAbsolutePath(), path);
+        return new ObjectId[]{master, dev};
+    }
+
+    private static ObjectId commitTo(GitAPI sub, File directory, String fileName) throws Exception {
+        FileUtils.writeStringToFile(new File(directory, fileName), fileName);
+        sub.add(fileName);
+        sub.commit("Add " + fileName);
+        return sub.revParse("HEAD");
+    }
+
+    private void setGitlinks(ObjectId a, ObjectId b) {
+        git.launchCommand("update-index", "--add", "--cacheinfo", "160000", a.name(), "modules/a");
+        git.launchCommand("update-index", "--add", "--cacheinfo", "160000", b.name(), "modules/b");
+    }
+
+    private List<String> getCombinationBranches() {
+        List<String> branches = new ArrayList<String>();
+        for (String line : git.launchCommand("for-each-ref", "--format=%(refname)", "refs/heads/combine-*")
+            .split("\n")) {
+            if (line.trim().length() > 0) {
+                branches.add(line.trim().substring("refs/heads/".length()));
+            }
+        }
+        return branches;
+    }
+}
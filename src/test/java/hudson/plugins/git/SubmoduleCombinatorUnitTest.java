@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Unit tests for {@link SubmoduleCombinator}.
+ */
+public class SubmoduleCombinatorUnitTest {
+
+    @Test
+    public void testCombinationIteratorMatchesCreateCombinations() {
+        Map<IndexEntry, Collection<Revision>> moduleBranches = new LinkedHashMap<IndexEntry, Collection<Revision>>();
+        moduleBranches.put(submodule("a"), Arrays.asList(revision(1), revision(2)));
+        moduleBranches.put(submodule("b"), Arrays.asList(revision(3), revision(4), revision(5)));
+        moduleBranches.put(submodule("c"), Arrays.asList(revision(6)));
+
+        SubmoduleCombinator.CombinationIterator iterator = new SubmoduleCombinator.CombinationIterator(moduleBranches);
+        assertEquals(6, iterator.getSize());
+        Set<Map<IndexEntry, Revision>> lazy = new HashSet<Map<IndexEntry, Revision>>();
+        while (iterator.hasNext()) {
+            lazy.add(iterator.next());
+        }
+
+        SubmoduleCombinator combinator = new SubmoduleCombinator(null, null, null,
+            Collections.<SubmoduleConfig>emptyList());
+        Set<Map<IndexEntry, Revision>> eager = new HashSet<Map<IndexEntry, Revision>>(
+            combinator.createCombinations(new LinkedHashMap<IndexEntry, Collection<Revision>>(moduleBranches)));
+        assertEquals(eager, lazy);
+    }
+
+    @Test
+    public void testCombinationIteratorWithoutRevisions() {
+        Map<IndexEntry, Collection<Revision>> moduleBranches = new LinkedHashMap<IndexEntry, Collection<Revision>>();
+        moduleBranches.put(submodule("a"), Arrays.asList(revision(1)));
+        moduleBranches.put(submodule("b"), Collections.<Revision>emptyList());
+
+        SubmoduleCombinator.CombinationIterator iterator = new SubmoduleCombinator.CombinationIterator(moduleBranches);
+        assertEquals(0, iterator.getSize());
+        assertFalse(iterator.hasNext());
+    }
+
+    private static IndexEntry submodule(String path) {
+        return new IndexEntry("160000", "commit", ObjectId.zeroId().name(), path);
+    }
+
+    private static Revision revision(int n) {
+        return new Revision(ObjectId.fromString(String.format("%040x", n)));
+    }
+}
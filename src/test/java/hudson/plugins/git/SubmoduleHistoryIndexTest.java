@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package hudson.plugins.git;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Tests for {@link SubmoduleHistoryIndex}.
+ */
+public class SubmoduleHistoryIndexTest extends AbstractGitTestCase {
+
+    public void testMatchesLsTree() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        String first = git.revParse("HEAD").name();
+        commit("commitFile2", johnDoe, "Commit number 2");
+        String second = git.revParse("HEAD").name();
+
+        addGitlink("lib", first);
+        git.commit("Add lib");
+        addGitlink("lib", second);
+        addGitlink("modules/nested", first);
+        git.commit("Move lib, add nested");
+        git.launchCommand("checkout", "-b", "side", "HEAD~1");
+        git.launchCommand("rm", "--cached", "-q", "lib");
+        git.commit("Remove lib");
+        git.launchCommand("checkout", "master");
+        git.launchCommand("merge", "--no-ff", "-m", "Merge side", "side");
+
+        SubmoduleHistoryIndex index = SubmoduleHistoryIndex.load(git.getRepository());
+        assertMatchesLsTree(index);
+        File file = new File(git.getRepository().getDirectory(), SubmoduleHistoryIndex.FILE);
+        long length = file.length();
+
+        // reloading only appends the new commits
+        assertMatchesLsTree(SubmoduleHistoryIndex.load(git.getRepository()));
+        assertEquals(length, file.length());
+        addGitlink("lib", first);
+        git.commit("Reset lib");
+        assertMatchesLsTree(SubmoduleHistoryIndex.load(git.getRepository()));
+        assertTrue(file.length() > length);
+
+        // an interrupted write is dropped, and the missing commits computed again
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        truncate.setLength(file.length() - 3);
+        truncate.close();
+        assertMatchesLsTree(SubmoduleHistoryIndex.load(git.getRepository()));
+    }
+
+    private void addGitlink(String path, String commit) {
+        git.launchCommand("update-index", "--add", "--cacheinfo", "160000", commit, path);
+    }
+
+    private void assertMatchesLsTree(SubmoduleHistoryIndex index) throws Exception {
+        Map<ObjectId, SortedMap<String, ObjectId>> commits = index.getCommits();
+        assertEquals(git.revListAll().size(), commits.size());
+        for (ObjectId commit : git.revListAll()) {
+            SortedMap<String, ObjectId> expected = new TreeMap<String, ObjectId>();
+            BufferedReader reader = new BufferedReader(
+                new StringReader(git.launchCommand("ls-tree", "-r", commit.name())));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] entry = line.split("\\s+", 4);
+                if (entry[0].equals("160000")) {
+                    expected.put(entry[3], ObjectId.fromString(entry[2]));
+                }
+            }
+            assertEquals(commit.name(), expected, commits.get(commit));
+        }
+        Map<SortedMap<String, ObjectId>, ObjectId> configurations = index.getConfigurations();
+        assertEquals(new HashSet<SortedMap<String, ObjectId>>(commits.values()), configurations.keySet());
+        for (Map.Entry<SortedMap<String, ObjectId>, ObjectId> configuration : configurations.entrySet()) {
+            assertEquals(configuration.getKey(), commits.get(configuration.getValue()));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git.converter;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.XmlFile;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.plugins.git.util.BuildData;
+import hudson.util.XStream2;
+import java.io.File;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link BuildDataConverter}: migration of legacy build records to the compact form.
+ */
+public class BuildDataConverterTest {
+    private static final ObjectId MASTER = ObjectId.fromString("2604e1e9abb0935391ac670fa8c9d5bde4cfba9f");
+    private static final ObjectId SVN = ObjectId.fromString("3c21e17aa4449af90839f82124094ed33518d7e2");
+
+    private File sourceConfigFile;
+    private File targetConfigFile;
+    private XStream xstream;
+
+    @Before
+    public void setUp() throws Exception {
+        sourceConfigFile = new File(this.getClass().getResource("build.xml").toURI());
+        targetConfigFile = new File(sourceConfigFile.getParent(), "target_build_data.xml");
+        xstream = new XStream2();
+        xstream.alias("project", FreeStyleProject.class);
+        xstream.alias("build", FreeStyleBuild.class);
+        xstream.registerConverter(new ObjectIdConverter());
+        xstream.registerConverter(new BuildDataConverter(xstream.getMapper(), xstream.getReflectionProvider()));
+    }
+
+    @Test
+    public void testLegacyUnmarshall() throws Exception {
+        FreeStyleBuild build = (FreeStyleBuild) new XmlFile(xstream, sourceConfigFile).read();
+        assertBuildData(build.getAction(BuildData.class));
+    }
+
+    @Test
+    public void testMarshallCompact() throws Exception {
+        FreeStyleBuild build = (FreeStyleBuild) new XmlFile(xstream, sourceConfigFile).read();
+        new XmlFile(xstream, targetConfigFile).write(build);
+
+        String xml = FileUtils.readFileToString(targetConfigFile);
+        assertTrue(xml.contains("<packed>"));
+        assertFalse(xml.contains("<buildsByBranchName>"));
+
+        FreeStyleBuild reloaded = (FreeStyleBuild) new XmlFile(xstream, targetConfigFile).read();
+        assertBuildData(reloaded.getAction(BuildData.class));
+    }
+
+    private void assertBuildData(BuildData data) {
+        assertEquals(MASTER, data.getLastBuiltRevision().getSha1());
+        assertEquals(2, data.getBuildsByBranchName().size());
+        assertEquals(8, data.getLastBuildOfBranch("origin/master").getBuildNumber());
+        assertEquals(SVN, data.getLastBuildOfBranch("origin/svn").getSHA1());
+        assertTrue(data.hasBeenBuilt(SVN));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Andrew Bayer, Anton Kozak, Nikita Levyankov
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.git.util;
+
+import hudson.model.Result;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link BuildData}
+ */
+public class BuildDataTest {
+    private static final ObjectId SHA1 = ObjectId.fromString("2604e1e9abb0935391ac670fa8c9d5bde4cfba9f");
+    private static final ObjectId SHA2 = ObjectId.fromString("3c21e17aa4449af9083de7f820240ed335183fe2");
+    private static final ObjectId SHA3 = ObjectId.fromString("d2c1f1e0b1e3c6ad2e7b5f8b6e3d1f4a6c9e2b70");
+
+    @Test
+    public void testCloneSharesBuildsUntilSave() {
+        BuildData data = new BuildData();
+        Build master = build("origin/master", SHA1, 1);
+        data.saveBuild(master);
+
+        BuildData copy = data.clone();
+        assertSame(master, copy.getLastBuildOfBranch("origin/master"));
+
+        copy.saveBuild(build("origin/feature", SHA2, 2));
+        assertEquals(2, copy.getBuildsByBranchName().size());
+        assertEquals(1, data.getBuildsByBranchName().size());
+        assertNull(data.getLastBuildOfBranch("origin/feature"));
+        assertSame(master, data.lastBuild);
+    }
+
+    @Test
+    public void testDeltaCopyPersistsOnlyChangedBranches() {
+        BuildData data = new BuildData();
+        data.saveBuild(build("origin/master", SHA1, 1));
+
+        BuildData next = data.deltaCopy(1);
+        Build feature = build("origin/feature", SHA2, 2);
+        next.saveBuild(feature);
+
+        BuildData persisted = next.toPersistentForm();
+        assertNotSame(next, persisted);
+        assertEquals(Collections.singleton("origin/feature"), persisted.buildsByBranchName.keySet());
+        assertSame(feature, persisted.lastBuild);
+        assertTrue(persisted.isDeltaOf(1));
+        assertTrue(next.hasBeenBuilt(SHA1));
+    }
+
+    @Test
+    public void testUnattachedDeltaDoesNotFail() {
+        BuildData data = new BuildData();
+        data.saveBuild(build("origin/master", SHA1, 1));
+        BuildData next = data.deltaCopy(1);
+        next.saveBuild(build("origin/feature", SHA2, 2));
+
+        // As read from build.xml outside of Hudson, where nothing tells it which build it belongs to
+        BuildData persisted = next.toPersistentForm();
+        assertEquals(Collections.singleton("origin/feature"), persisted.getBuildsByBranchName().keySet());
+        assertTrue(persisted.hasBeenBuilt(SHA2));
+    }
+
+    @Test
+    public void testFullSnapshotAfterMaxDeltaDepth() {
+        BuildData data = new BuildData();
+        data.saveBuild(build("origin/master", SHA1, 1));
+        for (int i = 1; i <= BuildData.MAX_DELTA_DEPTH; i++) {
+            data = data.deltaCopy(i);
+            assertTrue(data.isDeltaOf(i));
+        }
+        BuildData snapshot = data.deltaCopy(BuildData.MAX_DELTA_DEPTH + 1);
+        assertSame(snapshot, snapshot.toPersistentForm());
+    }
+
+    @Test
+    public void testCompactFormRoundTrip() throws Exception {
+        BuildData data = new BuildData();
+        data.saveBuild(build("origin/master", SHA1, 1));
+        Build feature = build("origin/feature", SHA2, 2);
+        feature.mergeRevision = new Revision(SHA1, Collections.singletonList(new Branch("origin/master", SHA1)));
+        data.saveBuild(feature);
+        BuildData delta = data.deltaCopy(2);
+        delta.saveBuild(build("origin/feature", SHA1, 3));
+
+        BuildData read = BuildDataFormat.read(BuildDataFormat.write(delta.toPersistentForm()));
+        assertEquals(3, read.lastBuild.getBuildNumber());
+        assertTrue(read.isDeltaOf(2));
+        // the branch map is decoded on first access only, untouched data is written back as is
+        assertNotNull(read.packed);
+        assertSame(read.packed, BuildDataFormat.write(read));
+
+        read = BuildDataFormat.read(BuildDataFormat.write(data));
+        assertEquals(2, read.getBuildsByBranchName().size());
+        assertNull(read.packed);
+        assertSame(read.lastBuild, read.getLastBuildOfBranch("origin/feature"));
+        assertEquals(SHA1, read.lastBuild.mergeRevision.getSha1());
+        assertEquals(SHA1, read.getLastBuildOfBranch("origin/master").getSHA1());
+        assertEquals(Result.SUCCESS, read.getLastBuildOfBranch("origin/master").getBuildResult());
+    }
+
+    @Test
+    public void testPruneDeletedAndExpiredBranches() {
+        BuildData data = new BuildData();
+        data.saveBuild(build("origin/gone", SHA1, 1));
+        data.saveBuild(build("origin/old", SHA2, 2));
+        data.saveBuild(build("origin/master", SHA3, 10));
+        BuildData next = data.deltaCopy(10);
+
+        // origin/old still points at the commit built in #2
+        Collection<Revision> heads = Arrays.asList(revision("origin/old", SHA2), revision("origin/master", SHA3));
+        assertEquals(2, next.prune(heads, new BuildDataRetention(true, 0, 5), 11));
+        assertEquals(Collections.singleton("origin/master"), next.getBuildsByBranchName().keySet());
+        assertTrue("pruned head must not be rebuilt", next.hasBeenBuilt(SHA2));
+        assertFalse(next.hasBeenBuilt(SHA1));
+        assertEquals(3, data.getBuildsByBranchName().size());
+
+        BuildData persisted = next.toPersistentForm();
+        assertEquals(new HashSet<String>(Arrays.asList("origin/gone", "origin/old")), persisted.removedBranches);
+
+        // once nothing points at it anymore the pruned SHA1 is forgotten as well
+        next.prune(Collections.singletonList(revision("origin/master", SHA3)), new BuildDataRetention(true, 0, 0), 12);
+        assertFalse(next.hasBeenBuilt(SHA2));
+    }
+
+    @Test
+    public void testPruneKeepsEverythingWithoutRemoteBranches() {
+        BuildData data = new BuildData();
+        data.saveBuild(build("origin/feature", SHA1, 1));
+        data.saveBuild(build("origin/master", SHA2, 2));
+        assertEquals(0, data.prune(Collections.<Revision>emptyList(), new BuildDataRetention(true, 0, 0), 3));
+        assertEquals(2, data.getBuildsByBranchName().size());
+    }
+
+    private static Revision revision(String branchName, ObjectId sha1) {
+        return new Revision(sha1, Collections.singletonList(new Branch(branchName, sha1)));
+    }
+
+    private static Build build(String branchName, ObjectId sha1, int number) {
+        return new Build(revision(branchName, sha1), number, Result.SUCCESS);
+    }
+}